@@ -0,0 +1,249 @@
+package nosqlite;
+
+import nosqlite.handlers.BulkOptions;
+import nosqlite.handlers.BulkProgress;
+import nosqlite.handlers.UpdateOptions;
+import nosqlite.handlers.UpdateOptionsHandler;
+import nosqlite.utilities.Utils;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Bulk update or delete that works through the collection in key ranges.
+ * Each chunk is queued as its own write, so writes from other threads
+ * get to run between the chunks. Without runAsync the chunks run on the calling thread.
+ *
+ * Bulk operations don't notify watchers.
+ *
+ * @author Johan Wirén
+ */
+@SuppressWarnings("unchecked")
+public class BulkOperation {
+  private static final String CHECKPOINTS = "_nosqlite_bulk";
+
+  private final Collection collection;
+  private final DbHelper db;
+  private final BulkOptions options;
+  private final String collName;
+
+  BulkOperation(Collection collection, DbHelper db, BulkOptions options) {
+    if (options.chunkSize < 1) throw new IllegalArgumentException("chunkSize must be at least 1");
+    this.collection = collection;
+    this.db = db;
+    this.options = options;
+    this.collName = collection.getName();
+  }
+
+  public CompletableFuture<BulkProgress> removeField(String field) {
+    if (field == null) throw new NullPointerException();
+    List params = new ArrayList();
+    params.add("$." + field);
+
+    List conditionParams = new ArrayList();
+    conditionParams.add("$." + field);
+    return run("removeField", "UPDATE " + collName + " SET value = json_remove(value, ?)", params,
+        "json_type(value, ?) IS NOT NULL", conditionParams, null);
+  }
+
+  /**
+   * Documents that already have the new field are left untouched
+   */
+  public CompletableFuture<BulkProgress> changeFieldName(String newField, String oldField) {
+    if (newField == null || oldField == null) throw new NullPointerException();
+    // set the new field and remove the old field in the same statement
+    List params = new ArrayList();
+    params.add("$." + newField);
+    params.add("$." + oldField);
+    params.add("$." + oldField);
+
+    List conditionParams = new ArrayList();
+    conditionParams.add("$." + oldField);
+    conditionParams.add("$." + newField);
+    return run("changeFieldName", "UPDATE " + collName + " SET value = json_remove(json_insert(value, ?, json_extract(value, ?)), ?)", params,
+        "json_type(value, ?) IS NOT NULL AND json_type(value, ?) IS NULL", conditionParams, null);
+  }
+
+  public CompletableFuture<BulkProgress> updateField(String field, Object value) {
+    return updateField(null, field, value);
+  }
+
+  public CompletableFuture<BulkProgress> updateField(String filter, String field, Object value) {
+    if (field == null) throw new NullPointerException();
+
+    boolean isJson = false;
+    if (value != null && !(value instanceof String)) {
+      value = collection.JSONstringify(value);
+      isJson = true;
+    }
+
+    List params = new ArrayList();
+    params.add("$." + field);
+    params.add(value);
+    return run("updateField", "UPDATE " + collName + " SET value = json_replace(value, ?, " + (isJson ? "json(?))" : "?)"), params,
+        null, null, filter);
+  }
+
+  public CompletableFuture<BulkProgress> update(UpdateOptionsHandler option) {
+    return update(null, option);
+  }
+
+  public CompletableFuture<BulkProgress> update(String filter, UpdateOptionsHandler option) {
+    UpdateOptions op = new UpdateOptions();
+    option.handle(op);
+
+    List params = new ArrayList();
+    String value = collection.compileUpdate(op, params);
+    return run("update", "UPDATE " + collName + " SET value = " + value, params, null, null, filter);
+  }
+
+  public CompletableFuture<BulkProgress> delete() {
+    return delete(null);
+  }
+
+  public CompletableFuture<BulkProgress> delete(String filter) {
+    return run("delete", "DELETE FROM " + collName, new ArrayList(), null, null, filter);
+  }
+
+  private CompletableFuture<BulkProgress> run(String operation, String statement, List params,
+                                              String condition, List conditionParams, String filter) {
+    String where = condition == null ? "" : " AND " + condition;
+    List whereParams = conditionParams == null ? new ArrayList() : conditionParams;
+
+    if (filter != null) {
+      Map<String, List<String>> filters = db.generateWhereClause(collName, filter);
+      where += " AND (" + filters.get("query").get(0).replaceFirst("^ WHERE", "") + ")";
+      whereParams.addAll(db.populateParams(filters));
+    }
+
+    CompletableFuture<BulkProgress> future = new CompletableFuture<>();
+    String finalWhere = where;
+    Runnable chunks = () -> {
+      try {
+        future.complete(execute(operation, statement, params, finalWhere, whereParams));
+      } catch (SQLException | RuntimeException e) {
+        future.completeExceptionally(e);
+      }
+    };
+    // without the writer thread the chunks would share the connection with the caller,
+    // they run on the caller instead and the future is done when this returns
+    if (!db.isAsync()) {
+      chunks.run();
+      return future;
+    }
+    Thread thread = new Thread(chunks, "nosqlite-bulk-" + collName);
+    thread.setDaemon(true);
+    thread.start();
+
+    return future;
+  }
+
+  /**
+   * Throws the failure of a chunk, the chunks before it are committed and a resumed operation continues after them
+   */
+  private BulkProgress execute(String operation, String statement, List params, String where, List whereParams) throws SQLException {
+    String lastKey = null;
+    long processed = 0;
+
+    if (options.resumeId != null) {
+      db.run("create", () -> {
+        try (Statement stmt = db.conn.createStatement()) {
+          stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + CHECKPOINTS +
+              "(id TEXT PRIMARY KEY NOT NULL, lastKey TEXT, processed INTEGER NOT NULL)");
+        }
+        return "created";
+      });
+      Object[] id = {options.resumeId};
+      lastKey = db.get("SELECT lastKey FROM " + CHECKPOINTS + " WHERE id = ?", id);
+      String saved = db.get("SELECT processed FROM " + CHECKPOINTS + " WHERE id = ?", id);
+      if (saved != null) processed = Long.parseLong(saved);
+    }
+
+    // documents left to handle, plus the ones handled before a resume
+    List countParams = new ArrayList();
+    if (lastKey != null) countParams.add(lastKey);
+    countParams.addAll(whereParams);
+    String total = db.get("SELECT count(*) FROM " + collName + " WHERE " + (lastKey == null ? "1" : "key > ?") + where, countParams.toArray());
+    BulkProgress progress = new BulkProgress(collName, operation, processed,
+        total == null ? 0 : Long.parseLong(total) + processed, lastKey, false);
+
+    while (true) {
+      String lower = lastKey;
+      String range = lower == null ? "1" : "key > ?";
+
+      // find the upper bound of the next chunk, reads don't need the writer
+      List keyParams = new ArrayList();
+      if (lower != null) keyParams.add(lower);
+      keyParams.addAll(whereParams);
+      String upper = db.get(String.format("SELECT max(key) FROM (SELECT key FROM %s WHERE %s%s ORDER BY key LIMIT %d)",
+          collName, range, where, options.chunkSize), keyParams.toArray());
+      if (upper == null) break;
+
+      long processedBefore = progress.processed;
+      SQLException[] failure = new SQLException[1];
+      String changed = db.run("bulk", () -> {
+        try {
+          return db.transaction(() -> {
+            List chunkParams = new ArrayList(params);
+            if (lower != null) chunkParams.add(lower);
+            chunkParams.add(upper);
+            chunkParams.addAll(whereParams);
+
+            int count;
+            try (PreparedStatement stmt = db.conn.prepareStatement(statement + " WHERE " + range + " AND key <= ?" + where)) {
+              for (int i = 0; i < chunkParams.size(); i++) {
+                Utils.setParams(i + 1, chunkParams.get(i), stmt);
+              }
+              count = stmt.executeUpdate();
+            }
+
+            if (options.resumeId != null) saveCheckpoint(upper, processedBefore + count);
+            return String.valueOf(count);
+          });
+        } catch (SQLException e) {
+          failure[0] = e;
+          throw e;
+        }
+      });
+
+      // stop on failure, a resumed operation continues after the last saved chunk
+      if (changed == null) {
+        throw failure[0] != null ? failure[0] : new SQLException(String.format("Bulk %s of '%s' stopped after key %s", operation, collName, lastKey));
+      }
+
+      lastKey = upper;
+      progress.processed += Long.parseLong(changed);
+      progress.lastKey = upper;
+      if (options.onProgress != null) options.onProgress.handle(progress);
+    }
+
+    if (options.resumeId != null) {
+      db.run("delete", () -> {
+        try (PreparedStatement stmt = db.conn.prepareStatement("DELETE FROM " + CHECKPOINTS + " WHERE id = ?")) {
+          stmt.setString(1, options.resumeId);
+          stmt.executeUpdate();
+        }
+        return "deleted";
+      });
+    }
+
+    progress.done = true;
+    if (options.onProgress != null) options.onProgress.handle(progress);
+    return progress;
+  }
+
+  private void saveCheckpoint(String lastKey, long processed) throws SQLException {
+    try (PreparedStatement stmt = db.conn.prepareStatement("INSERT INTO " + CHECKPOINTS + " VALUES(?, ?, ?) " +
+        "ON CONFLICT(id) DO UPDATE SET lastKey=excluded.lastKey, processed=excluded.processed")) {
+      stmt.setString(1, options.resumeId);
+      stmt.setString(2, lastKey);
+      stmt.setLong(3, processed);
+      stmt.executeUpdate();
+    }
+  }
+}
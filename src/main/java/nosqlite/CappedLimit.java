@@ -0,0 +1,93 @@
+package nosqlite;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps only the newest documents of a capped collection, by number of documents or stored bytes.
+ * The rowid is the insertion order, so the oldest documents are a range at the start of the table.
+ * Triggers count the documents and bytes, and delete the oldest in the same statement as the insert,
+ * so the collection is never above its limits.
+ *
+ * @author Johan Wirén
+ */
+class CappedLimit {
+  static final String TYPE = "capped";
+
+  static String table(String collName) {
+    return "_nosqlite_capped_" + collName;
+  }
+
+  static boolean isCapped(IndexRegistry indexes, String collName) {
+    return indexes.get(collName, TYPE) != null;
+  }
+
+  // must be called on the writer thread
+  static void create(DbHelper db, String collName, long maxDocuments, long maxBytes) throws SQLException {
+    drop(db, collName);
+    String table = table(collName);
+
+    try (Statement stmt = db.conn.createStatement()) {
+      stmt.executeUpdate(String.format("CREATE TABLE %s(documents INTEGER NOT NULL, bytes INTEGER NOT NULL)", table));
+      stmt.executeUpdate(String.format("INSERT INTO %s SELECT count(*), coalesce(sum(length(value)), 0) FROM %s", table, collName));
+    }
+    db.indexes.put(collName, TYPE, new String[] { String.valueOf(maxDocuments), String.valueOf(maxBytes) });
+    createTriggers(db, collName);
+
+    // documents above the new limits are deleted right away
+    try (Statement stmt = db.conn.createStatement()) {
+      for (String evict : evict(collName, maxDocuments, maxBytes, "-1")) stmt.executeUpdate(evict);
+    }
+  }
+
+  private static void createTriggers(DbHelper db, String collName) throws SQLException {
+    String[] limits = db.indexes.get(collName, TYPE);
+    long maxDocuments = Long.parseLong(limits[0]), maxBytes = Long.parseLong(limits[1]);
+    String table = table(collName);
+
+    try (Statement stmt = db.conn.createStatement()) {
+      stmt.executeUpdate(String.format("CREATE TRIGGER %1$s_insert AFTER INSERT ON %2$s BEGIN " +
+          "UPDATE %1$s SET documents = documents + 1, bytes = bytes + length(new.value); %3$s END",
+          table, collName, String.join("", evict(collName, maxDocuments, maxBytes, "new.rowid"))));
+      stmt.executeUpdate(String.format("CREATE TRIGGER %1$s_delete AFTER DELETE ON %2$s BEGIN " +
+          "UPDATE %1$s SET documents = documents - 1, bytes = bytes - length(old.value); END", table, collName));
+      stmt.executeUpdate(String.format("CREATE TRIGGER %1$s_update AFTER UPDATE OF value ON %2$s BEGIN " +
+          "UPDATE %1$s SET bytes = bytes + length(new.value) - length(old.value); %3$s END",
+          table, collName, String.join("", evict(collName, 0, maxBytes, "new.rowid"))));
+    }
+  }
+
+  // must be called on the writer thread
+  static void drop(DbHelper db, String collName) throws SQLException {
+    String table = table(collName);
+    try (Statement stmt = db.conn.createStatement()) {
+      stmt.executeUpdate("DROP TRIGGER IF EXISTS " + table + "_insert");
+      stmt.executeUpdate("DROP TRIGGER IF EXISTS " + table + "_delete");
+      stmt.executeUpdate("DROP TRIGGER IF EXISTS " + table + "_update");
+      stmt.executeUpdate("DROP TABLE IF EXISTS " + table);
+    }
+    db.indexes.remove(collName, TYPE);
+  }
+
+  /**
+   * Deletes the oldest documents above maxDocuments, then the oldest documents whose bytes
+   * are above maxBytes, counted from the start of the table. The written document is kept.
+   */
+  private static List<String> evict(String collName, long maxDocuments, long maxBytes, String written) {
+    String table = table(collName);
+    List<String> evict = new ArrayList<>();
+    if (maxDocuments > 0) {
+      evict.add(String.format("DELETE FROM %1$s WHERE rowid IN (SELECT rowid FROM %1$s WHERE rowid != %3$s ORDER BY rowid " +
+          "LIMIT max(0, (SELECT documents FROM %2$s) - %4$d));", collName, table, written, maxDocuments));
+    }
+    if (maxBytes > 0) {
+      // the running sum stops at the first document that frees enough bytes
+      evict.add(String.format("DELETE FROM %1$s WHERE (SELECT bytes FROM %2$s) > %4$d AND rowid <= " +
+          "(SELECT rowid FROM (SELECT rowid, sum(length(value)) OVER (ORDER BY rowid) AS freed FROM %1$s WHERE rowid != %3$s) " +
+          "WHERE freed >= (SELECT bytes FROM %2$s) - %4$d LIMIT 1) AND rowid != %3$s;", collName, table, written, maxBytes));
+    }
+    return evict;
+  }
+}
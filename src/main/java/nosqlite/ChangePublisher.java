@@ -0,0 +1,77 @@
+package nosqlite;
+
+import nosqlite.handlers.WatchData;
+import nosqlite.handlers.WatchHandler;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Publishes the changes of a collection. Each subscriber watches the collection from when it subscribes,
+ * events wait in a buffer until they're requested. A subscriber that falls behind by more than
+ * the buffer size gets an error and is unsubscribed, instead of the buffer growing without limit.
+ *
+ * @author Johan Wirén
+ */
+class ChangePublisher implements Publisher<WatchData> {
+  private final DbHelper db;
+  private final String collName;
+  private final int bufferSize;
+
+  ChangePublisher(DbHelper db, String collName, int bufferSize) {
+    if (bufferSize < 1) throw new IllegalArgumentException("bufferSize must be at least 1");
+    this.db = db;
+    this.collName = collName;
+    this.bufferSize = bufferSize;
+  }
+
+  @Override
+  public void subscribe(Subscriber<? super WatchData> subscriber) {
+    if (subscriber == null) throw new NullPointerException();
+    ChangeSubscription subscription = new ChangeSubscription(subscriber);
+    subscriber.onSubscribe(subscription);
+    db.watch(collName, subscription.watcher);
+    // cancelled in onSubscribe, before there was a watcher to remove
+    if (subscription.isCancelled()) db.unwatch(collName, subscription.watcher);
+  }
+
+  private class ChangeSubscription extends DemandSubscription<WatchData> {
+    private final ArrayBlockingQueue<WatchData> buffer = new ArrayBlockingQueue<>(bufferSize);
+    private volatile Throwable overflow = null;
+
+    final WatchHandler watcher = watchData -> {
+      if (!buffer.offer(watchData)) {
+        overflow = new IllegalStateException(String.format(
+            "More than %d changes of '%s' waiting, the subscriber is too slow", bufferSize, collName));
+        db.unwatch(collName, this.watcher);
+      }
+      drain();
+    };
+
+    ChangeSubscription(Subscriber<? super WatchData> subscriber) {
+      super(subscriber);
+    }
+
+    @Override
+    WatchData next() {
+      return buffer.poll();
+    }
+
+    @Override
+    boolean isDone() {
+      return false;
+    }
+
+    @Override
+    Throwable error() {
+      return overflow;
+    }
+
+    @Override
+    void onCancel() {
+      db.unwatch(collName, watcher);
+      buffer.clear();
+    }
+  }
+}
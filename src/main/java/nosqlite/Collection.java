@@ -1,19 +1,31 @@
 package nosqlite;
 
-import com.aventrix.jnanoid.jnanoid.NanoIdUtils;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import nosqlite.annotations.Document;
+import nosqlite.annotations.Expires;
 import nosqlite.annotations.Id;
+import nosqlite.annotations.TableLayout;
 import nosqlite.annotations.Transient;
 import nosqlite.exceptions.IdAnnotationMissingException;
 import nosqlite.exceptions.TypeMismatchException;
 import nosqlite.handlers.*;
+import nosqlite.utilities.IdGenerator;
+import nosqlite.utilities.Utils;
+import org.reactivestreams.Publisher;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Johan Wirén
@@ -24,13 +36,26 @@ public class Collection {
   private String collName;
   private DbHelper db;
   private ObjectMapper mapper = new ObjectMapper();
+  private ObjectReader reader;
+  private ObjectReader docReader;
   private String idField;
+  private IdGenerator idGenerator;
+  private boolean numericId = false;
+  private final IdSequence ids;
+  private volatile TableLayout layout = TableLayout.ROWID;
   private boolean hasTransient = false;
+  private volatile boolean tableCreated = false;
+  // expiry from @Expires or @Document(ttl), applied when the table is created
+  private String[] expiry = null;
+  // limits from @Document(maxDocuments, maxBytes), applied when the table is created
+  private String[] capped = null;
   
   Collection(DbHelper db, Class klass, String collName) {
     this.klass = klass;
     this.db = db;
     this.collName = collName;
+    this.idGenerator = Utils.idGenerator(klass);
+    this.ids = new IdSequence(db, collName);
     
     if (klass == null) {
       idField = "_id";
@@ -41,7 +66,27 @@ public class Collection {
         }
         if (field.isAnnotationPresent(Id.class)) {
           idField = field.getName();
+          numericId = Utils.isNumericId(field.getType());
         }
+        if (field.isAnnotationPresent(Expires.class)) {
+          expiry = new String[] { "field", field.getName() };
+        }
+      }
+      Document document = (Document) klass.getAnnotation(Document.class);
+      if (document != null) layout = document.layout();
+      if (document != null && document.ttl() < 0) {
+        throw new IllegalArgumentException("ttl can't be negative in " + collName);
+      }
+      if (document != null && document.ttl() > 0) {
+        if (expiry != null) throw new IllegalArgumentException("Use either @Expires or ttl in " + collName);
+        expiry = new String[] { "ttl", String.valueOf(TimeUnit.SECONDS.toMillis(document.ttl())) };
+      }
+      if (document != null && (document.maxDocuments() != 0 || document.maxBytes() != 0)) {
+        if (layout != TableLayout.ROWID) throw new IllegalArgumentException("A capped collection requires the ROWID layout in " + collName);
+        capped = new String[] { String.valueOf(document.maxDocuments()), String.valueOf(document.maxBytes()) };
+      }
+      if (layout == TableLayout.INTEGER && idField != null && !numericId) {
+        throw new IllegalArgumentException("The INTEGER layout requires a numeric @Id in " + collName);
       }
       if (idField == null) try {
         throw new IdAnnotationMissingException("No @Id in " + collName);
@@ -53,27 +98,313 @@ public class Collection {
     
     // ignore failure on field name mismatch
     mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-
-    // create table for this document
-    db.run("create", "CREATE TABLE IF NOT EXISTS " + collName +
-        "(key TEXT PRIMARY KEY UNIQUE NOT NULL, " +
-        "value JSON NOT NULL)", klass, collName);
+    // readers are immutable and cache the deserializer, one is reused for every find
+    reader = mapper.readerFor(mapper.getTypeFactory().constructCollectionType(List.class, klass == null ? Map.class : klass));
+    docReader = mapper.readerFor(klass == null ? Map.class : klass);
+  }
+  
+  /**
+   * Creates the table for this document the first time the collection is used
+   */
+  void createTable() {
+    if (tableCreated) return;
+    synchronized (this) {
+      if (tableCreated) return;
+      db.run("create", TableMigration.createTable(collName, layout), klass, collName);
+      
+      TableLayout existing = TableMigration.layoutOf(db, collName);
+      if (existing != null && existing != layout) {
+        System.err.println(String.format("'%s' is stored as %s, call migrate(TableLayout.%s) to change it", collName, existing, layout));
+        layout = existing;
+      }
+      db.setLayout(collName, layout);
+      // the expiry times are only reset when the annotations have changed
+      if (expiry != null && !Arrays.equals(expiry, db.indexes.get(collName, ExpiryIndex.TYPE))) {
+        if (expiry[0].equals("field")) {
+          expireAt(expiry[1]);
+        } else {
+          expireAfter(Long.parseLong(expiry[1]), TimeUnit.MILLISECONDS);
+        }
+      }
+      if (capped != null && !Arrays.equals(capped, db.indexes.get(collName, CappedLimit.TYPE))) {
+        cap(Long.parseLong(capped[0]), Long.parseLong(capped[1]));
+      }
+      tableCreated = true;
+      // first used in a transaction, the table is gone if it rolls back
+      db.onRollback(() -> {
+        tableCreated = false;
+        createTable();
+      });
+    }
+  }
+  
+  /**
+   * Copies the table to the layout in one transaction and creates its indexes again.
+   * Other writes wait until the copy is done.
+   *
+   * <pre>
+   * collection(User.class).migrate(TableLayout.WITHOUT_ROWID);
+   * </pre>
+   *
+   * @return true if the table has the layout
+   */
+  public boolean migrate(TableLayout layout) {
+    if (layout == null) throw new NullPointerException();
+    if (layout == TableLayout.INTEGER && !numericId) {
+      throw new IllegalArgumentException("The INTEGER layout requires a numeric @Id in " + collName);
+    }
+    TableMigration.validate(db, collName, layout);
+    
+    String migrated = db.run("migrate", () -> db.transaction(() -> {
+      TableMigration.migrate(db, collName, layout);
+      return "migrated";
+    }));
+    if (migrated == null) return false;
+    this.layout = layout;
+    db.setLayout(collName, layout);
+    return true;
+  }
+  
+  public TableLayout layout() {
+    return layout;
   }
   
   public Connection conn() {
     return db.conn;
   }
   
+  /**
+   * Drops the table in one transaction, with its indexes, side tables and triggers
+   */
+  void drop() {
+    db.run("delete", () -> db.transaction(() -> {
+      TextIndex.drop(db, collName);
+      GeoIndex.drop(db, collName);
+      ExpiryIndex.drop(db, collName);
+      CappedLimit.drop(db, collName);
+      InsertSequence.drop(db, collName);
+      String[] multikey = db.indexes.get(collName, MultikeyIndex.TYPE);
+      if (multikey != null) {
+        for (String field : multikey) MultikeyIndex.drop(db, collName, field);
+      }
+      try (Statement stmt = db.conn.createStatement()) {
+        stmt.executeUpdate("DROP TABLE IF EXISTS " + collName);
+      }
+      return "deleted";
+    }));
+    tableCreated = false;
+  }
+  
   public void close() {
     db.close();
   }
   
-  // TODO: indexing doesn't seem to do anything
-//  public void createIndex(String field) {
-//    if (field == null) throw new NullPointerException();
-//    Object[] params = {"$." + field};
-//    db.run("create", "CREATE INDEX IF NOT EXISTS " + collName + "_idx ON " + collName + "(json_extract(value, ?))", params, klass, collName);
-//  }
+  /**
+   * Creates an index on the field, used by filters and regex prefixes like '^jim' on that field.
+   * The path must be part of the schema, since the index only matches the same expression.
+   */
+  public void createIndex(String field) {
+    validateField(field);
+    db.run("create", () -> {
+      try (Statement stmt = db.conn.createStatement()) {
+        stmt.executeUpdate(String.format("CREATE INDEX IF NOT EXISTS %s ON %s(json_extract(value, '$.%s'))",
+            indexName(field), collName, field));
+      }
+      return "created";
+    });
+  }
+  
+  public void dropIndex(String field) {
+    validateField(field);
+    db.run("delete", () -> {
+      try (Statement stmt = db.conn.createStatement()) {
+        stmt.executeUpdate("DROP INDEX IF EXISTS " + indexName(field));
+      }
+      return "deleted";
+    });
+  }
+  
+  private String indexName(String field) {
+    return indexName(collName, field);
+  }
+  
+  static String indexName(String collName, String field) {
+    return "_nosqlite_idx_" + collName + "_" + TextIndex.column(field);
+  }
+  
+  /**
+   * Creates an index on the elements of an array field.
+   * Equality filters on the field then match documents containing the element.
+   *
+   * <pre>
+   * collection("Post").createMultikeyIndex("tags");
+   * collection("Post").find("tags==[java,sqlite]"); // tagged with java or sqlite
+   * </pre>
+   */
+  public void createMultikeyIndex(String field) {
+    validateField(field);
+    db.run("create", () -> db.transaction(() -> {
+      MultikeyIndex.create(db, collName, field);
+      return "created";
+    }));
+  }
+  
+  public void dropMultikeyIndex(String field) {
+    validateField(field);
+    db.run("delete", () -> db.transaction(() -> {
+      MultikeyIndex.drop(db, collName, field);
+      return "deleted";
+    }));
+  }
+  
+  /**
+   * Makes this a capped collection, that keeps the newest documents in insertion order.
+   * When an insert takes the collection above maxDocuments or maxBytes of stored JSON,
+   * the oldest documents are deleted in the same statement. 0 is no limit.
+   * Documents already above the limits are deleted right away.
+   *
+   * <pre>
+   * collection("AuditLog").cap(10000, 0);
+   * </pre>
+   */
+  public void cap(long maxDocuments, long maxBytes) {
+    // the rowid is the insertion order
+    if (layout != TableLayout.ROWID) {
+      throw new IllegalStateException(String.format("A capped collection requires the ROWID layout, '%s' is %s", collName, layout));
+    }
+    if (maxDocuments < 0 || maxBytes < 0) throw new IllegalArgumentException("Limits can't be negative");
+    if (maxDocuments == 0 && maxBytes == 0) throw new IllegalArgumentException("A capped collection requires maxDocuments or maxBytes");
+    db.run("create", () -> db.transaction(() -> {
+      CappedLimit.create(db, collName, maxDocuments, maxBytes);
+      return "created";
+    }));
+  }
+  
+  // documents are no longer deleted by the limits
+  public void uncap() {
+    db.run("delete", () -> db.transaction(() -> {
+      CappedLimit.drop(db, collName);
+      return "deleted";
+    }));
+  }
+  
+  public boolean isCapped() {
+    return CappedLimit.isCapped(db.indexes, collName);
+  }
+  
+  /**
+   * Tailable cursor, publishes the documents in insertion order and then each document as it's inserted,
+   * as the subscriber requests them. It doesn't complete, cancel the subscription to stop it.
+   * Works best with a capped collection, where the insertion order is kept.
+   */
+  public <T> Publisher<T> tail() {
+    return tail(null);
+  }
+  
+  public <T> Publisher<T> tail(String filter) {
+    TableMigration.requireRowid(layout, collName, "tailable cursor");
+    createTable();
+    // the insertion order is numbered from the first tail on
+    if (!InsertSequence.isEnabled(db.indexes, collName)) {
+      db.run("create", () -> db.transaction(() -> {
+        if (!InsertSequence.isEnabled(db.indexes, collName)) InsertSequence.create(db, collName);
+        return "created";
+      }));
+    }
+    return new TailPublisher<>(db, collName, filter, docReader);
+  }
+  
+  /**
+   * Documents expire the given time after they were last saved.
+   * Expired documents aren't found, and are deleted in the background.
+   * Replaces any earlier expiry, every document gets the new time.
+   *
+   * <pre>
+   * collection("sessions").expireAfter(30, TimeUnit.MINUTES);
+   * </pre>
+   */
+  public void expireAfter(long ttl, TimeUnit unit) {
+    long millis = unit.toMillis(ttl);
+    if (millis <= 0) throw new IllegalArgumentException("ttl must be positive");
+    db.run("create", () -> db.transaction(() -> {
+      ExpiryIndex.expireAfter(db, collName, millis);
+      return "created";
+    }));
+  }
+  
+  /**
+   * Documents expire at the time in the field, in epoch milliseconds.
+   * Documents without a time never expire. Replaces any earlier expiry.
+   */
+  public void expireAt(String field) {
+    validateField(field);
+    db.run("create", () -> db.transaction(() -> {
+      ExpiryIndex.expireAt(db, collName, field);
+      return "created";
+    }));
+  }
+  
+  // documents no longer expire
+  public void dropExpiry() {
+    db.run("delete", () -> db.transaction(() -> {
+      ExpiryIndex.drop(db, collName);
+      return "deleted";
+    }));
+  }
+  
+  /**
+   * Creates a full-text index over the fields, replaces any earlier text index.
+   * Search the index with the text(query) filter, results are ranked by relevance.
+   *
+   * <pre>
+   * collection("Message").createTextIndex("title", "body");
+   * collection("Message").find(text("sqlite AND json"));
+   * </pre>
+   */
+  public void createTextIndex(String... fields) {
+    if (fields.length == 0) throw new IllegalArgumentException("createTextIndex requires at least one field");
+    for (String field : fields) validateField(field);
+    TableMigration.requireRowid(layout, collName, "text index");
+    
+    db.run("create", () -> db.transaction(() -> {
+      TextIndex.create(db, collName, fields);
+      return "created";
+    }));
+  }
+  
+  public void dropTextIndex() {
+    db.run("delete", () -> db.transaction(() -> {
+      TextIndex.drop(db, collName);
+      return "deleted";
+    }));
+  }
+  
+  /**
+   * Creates an R*Tree index over the coordinate fields, used by the near() and within() filters.
+   * Replaces any earlier geo index.
+   *
+   * <pre>
+   * collection("Store").createGeoIndex("location.lat", "location.lon");
+   * collection("Store").find(near(59.33, 18.07, 500));
+   * </pre>
+   */
+  public void createGeoIndex(String latField, String lonField) {
+    validateField(latField);
+    validateField(lonField);
+    TableMigration.requireRowid(layout, collName, "geo index");
+    
+    db.run("create", () -> db.transaction(() -> {
+      GeoIndex.create(db, collName, latField, lonField);
+      return "created";
+    }));
+  }
+  
+  public void dropGeoIndex() {
+    db.run("delete", () -> db.transaction(() -> {
+      GeoIndex.drop(db, collName);
+      return "deleted";
+    }));
+  }
   
   public <T> T get(String key, Class<T> klass) {
     String json = get(key);
@@ -83,11 +414,22 @@ public class Collection {
   
   public String get(String key) {
     if (key == null) throw new NullPointerException();
-    String query = "SELECT value FROM " + collName + " WHERE key = ?";
-    Object[] params = {key};
+    String query = "SELECT value FROM " + collName + " WHERE key = ?"
+        + (ExpiryIndex.isEnabled(db.indexes, collName) ? " AND " + ExpiryIndex.notExpired(collName) : "");
+    Object[] params = {keyParam(key)};
     return db.get(query, params);
   }
   
+  // an INTEGER key is compared as a number, binding one skips converting the text
+  private Object keyParam(String key) {
+    if (layout != TableLayout.INTEGER) return key;
+    try {
+      return Long.valueOf(key);
+    } catch (NumberFormatException e) {
+      return key;
+    }
+  }
+  
   public String put(String key, Object value) {
     boolean exists = get(key) != null;
     boolean isJson = false;
@@ -104,7 +446,7 @@ public class Collection {
     String query = String.format("INSERT INTO %s values(?, json(?))" +
         "ON CONFLICT(key) DO UPDATE SET value=json(excluded.value)", collName);
     Object[] params = {key, value};
-    return db.run(exists ? "insert" : "update", query, params, klass, collName);
+    return db.upsert(exists ? "update" : "insert", query, params, klass, collName);
   }
   
   public String putIfAbsent(String key, Object value) {
@@ -128,6 +470,8 @@ public class Collection {
     if (jsonId == null) {
       Map<String, String> field = klass == null ? getIdField(new HashMap<>()) : getIdField();
       jsonId = field.get("id");
+    } else if (numericId) {
+      ids.use(Long.parseLong(jsonId));
     }
     String exists = get(jsonId);
     if (json.equals(exists)) return json; // don't update document which have no changes
@@ -135,8 +479,9 @@ public class Collection {
     String query = String.format("INSERT INTO %s VALUES(?, json(json_set(?, '$.%s', ?))) " +
         "ON CONFLICT(key) DO UPDATE SET value=json(excluded.value)", collName, idField);
     
-    Object[] params = {jsonId, json, jsonId};
-    return db.run(exists != null ? "update" : "insert", query, params, klass, collName);
+    // numeric ids are stored as numbers in the document
+    Object[] params = {jsonId, json, numericId ? (Object) Long.valueOf(jsonId) : jsonId};
+    return db.upsert(exists != null ? "update" : "insert", query, params, klass, collName);
   }
   
   public <T> T save(Object document) {
@@ -160,7 +505,7 @@ public class Collection {
     String query = String.format("INSERT INTO %s VALUES(?, json(?)) " +
         "ON CONFLICT(key) DO UPDATE SET value=json(excluded.value)", collName);
     Object[] params = {field.get("id"), json};
-    db.run(exists != null ? "update" : "insert", query, params, klass, collName);
+    db.upsert(exists != null ? "update" : "insert", query, params, klass, collName);
     
     // re-populate transient fields
     setTransientFields(document, transientFields);
@@ -175,6 +520,62 @@ public class Collection {
     return saveMany(documents);
   }
   
+  /**
+   * Imports a JSON array of documents without reading it all into memory.
+   * The documents are saved in batches, each batch in its own transaction,
+   * so batches saved before a failure are kept. Watchers are not notified.
+   *
+   * @return number of imported documents, or -1 if the import failed
+   */
+  public long importJson(InputStream json) {
+    if (json == null) throw new NullPointerException();
+    try {
+      return new JsonStream(db, collName, idField, idGenerator, numericId ? ids : null).importJson(json);
+    } catch (IOException e) {
+      e.printStackTrace();
+      return -1;
+    }
+  }
+  
+  public long importJson(Path path) {
+    if (path == null) throw new NullPointerException();
+    try (InputStream json = Files.newInputStream(path)) {
+      return importJson(json);
+    } catch (IOException e) {
+      e.printStackTrace();
+      return -1;
+    }
+  }
+  
+  /**
+   * Writes all documents as a JSON array, streamed from the database
+   * without collecting them in memory. The stream is flushed but not closed.
+   *
+   * @return number of exported documents, or -1 if the export failed
+   */
+  public long exportJson(OutputStream out) {
+    if (out == null) throw new NullPointerException();
+    try {
+      return new JsonStream(db, collName, idField, idGenerator, null).exportJson(out);
+    } catch (IOException | SQLException e) {
+      e.printStackTrace();
+      return -1;
+    }
+  }
+  
+  public long exportJson(Path path) {
+    if (path == null) throw new NullPointerException();
+    try {
+      if (path.getParent() != null) Files.createDirectories(path.getParent());
+      try (OutputStream out = Files.newOutputStream(path)) {
+        return exportJson(out);
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+      return -1;
+    }
+  }
+  
   public <T> T[] saveMany(Object[] documents) {
     if (documents == null) throw new NullPointerException();
   
@@ -199,6 +600,9 @@ public class Collection {
           return null;
         }
   
+        // numeric ids come from the collection's sequence
+        if (numericId) getIdField(doc);
+        
         // temporarily remove @Transient property
         if(hasTransient) {
           documentsTransientFields.put(doc, getTransientFields(doc));
@@ -239,14 +643,7 @@ public class Collection {
   }
   
   public <T> List<T> find(String filter, String sort, int limit, int offset) {
-    String jsonArray = findAsJson(filter, sort, limit, offset);
-    if (jsonArray == null || jsonArray.equals("[]")) return new ArrayList<>();
-    try {
-      return mapper.readValue(jsonArray, mapper.getTypeFactory().constructCollectionType(List.class, klass));
-    } catch (JsonProcessingException e) {
-      e.printStackTrace();
-    }
-    return new ArrayList<>();
+    return db.find(collName, filter, sort, limit, offset, reader);
   }
   
   public <T> List<T> find(FindOptionsHandler option) {
@@ -255,6 +652,38 @@ public class Collection {
     return find(op.filter, op.sort, op.limit, op.offset);
   }
   
+  /**
+   * Publishes the documents matching the filter, read a page at a time as the subscriber requests them
+   */
+  public <T> Publisher<T> publish(String filter) {
+    return publish(filter, null);
+  }
+  
+  public <T> Publisher<T> publish(String filter, String sort) {
+    return new QueryPublisher<>(db, collName, filter, sort, docReader);
+  }
+  
+  /**
+   * Shows how find() runs the filter: the query, the plan, which predicates are looked up in an index,
+   * and how many documents are read compared to what the planner expected. The query is run once.
+   *
+   * <pre>
+   * assertFalse(collection("User").explain("age>30").fullScan);
+   * </pre>
+   */
+  public QueryPlan explain(String filter) {
+    return explain(filter, null);
+  }
+  
+  public QueryPlan explain(String filter, String sort) {
+    try {
+      return QueryExplainer.explain(db, collName, filter, sort);
+    } catch (SQLException e) {
+      e.printStackTrace();
+    }
+    return null;
+  }
+  
   public <T> T findOne(String filter) {
     List docs = find(filter, 1);
     return docs.size() > 0 ? (T) docs.get(0) : null;
@@ -373,24 +802,148 @@ public class Collection {
     // by id
     if (filter != null && filter.matches("[\\w_]+")) {
       Object[] params = {"$." + field, value, filter};
-      return db.run("update", "UPDATE " + collName + " SET value = json_replace(value, ?, " + (isJson ? "json(?)" : "?") + ") WHERE key = ?", params, klass, collName);
+      return db.update("UPDATE " + collName + " SET value = json_replace(value, ?, " + (isJson ? "json(?)" : "?") + ")", " WHERE key = ?", params, 2, klass, collName);
     }
     
     String query = "UPDATE " + collName + " SET value = json_replace(value, ?, " + (isJson ? "json(?))" : "?)");
     List params = new ArrayList();
+    String where = null;
     
     if (filter != null) {
-      Map<String, List<String>> filters = db.generateWhereClause(filter);
+      Map<String, List<String>> filters = db.generateWhereClause(collName, filter);
       params = db.populateParams(filters);
-      query += filters.get("query").get(0);
+      where = filters.get("query").get(0);
     }
     
     params.add(0, value);
     params.add(0, "$." + field);
     
-    return db.run("update", query, params.toArray(), klass, collName);
+    return db.update(query, where, params.toArray(), 2, klass, collName);
   }
   
+  public String update(UpdateOptionsHandler option) {
+    return update(null, option);
+  }
+
+  public String updateById(String id, UpdateOptionsHandler option) {
+    if (id == null) throw new NullPointerException();
+    List params = new ArrayList();
+    params.add(id);
+    return update(" WHERE key = ?", params, option);
+  }
+
+  /**
+   * Applies all operators in a single UPDATE statement.
+   * Operators on the same field are not combined,
+   * $inc, $push and $pull always reads the value from before the update.
+   *
+   * <pre>
+   * collection("User").update("name==John", op -> op
+   *     .inc("visits", 1)
+   *     .push("tags", "vip")
+   *     .set("active", true));
+   * </pre>
+   */
+  public String update(String filter, UpdateOptionsHandler option) {
+    if (filter == null) return update(null, null, option);
+    Map<String, List<String>> filters = db.generateWhereClause(collName, filter);
+    return update(filters.get("query").get(0), db.populateParams(filters), option);
+  }
+
+  private String update(String where, List whereParams, UpdateOptionsHandler option) {
+    UpdateOptions op = new UpdateOptions();
+    option.handle(op);
+    if (op.getOperations().isEmpty()) return null;
+
+    List params = new ArrayList();
+    String query = "UPDATE " + collName + " SET value = " + compileUpdate(op, params);
+    int setParams = params.size();
+    if (where != null) params.addAll(whereParams);
+
+    return db.update(query, where, params.toArray(), setParams, klass, collName);
+  }
+
+  /**
+   * Compiles the operators into a nested json_set() expression
+   *
+   * @param params is populated with the params of the expression
+   */
+  String compileUpdate(UpdateOptions op, List params) {
+    String value = "value";
+
+    for (Object[] operation : op.getOperations()) {
+      String path = "$." + operation[1];
+      Object param = operation[2];
+      boolean isJson = false;
+
+      if (param instanceof Boolean) {
+        param = param.toString();
+        isJson = true;
+      } else if (param != null && !(param instanceof String) && !(param instanceof Number)) {
+        param = JSONstringify(param);
+        isJson = true;
+      }
+      String bind = isJson ? "json(?)" : "?";
+
+      switch ((String) operation[0]) {
+        case "$set":
+          value = "json_set(" + value + ", ?, " + bind + ")";
+          params.add(path);
+          params.add(param);
+          break;
+        case "$unset":
+          value = "json_remove(" + value + ", ?)";
+          params.add(path);
+          break;
+        case "$inc":
+          value = "json_set(" + value + ", ?, COALESCE(json_extract(value, ?), 0) + ?)";
+          params.add(path);
+          params.add(path);
+          params.add(param);
+          break;
+        case "$push":
+          value = "json_set(" + value + ", ?, json_insert(COALESCE(json_extract(value, ?), '[]'), '$[#]', " + bind + "))";
+          params.add(path);
+          params.add(path);
+          params.add(param);
+          break;
+        case "$pull":
+          // elements are compared and written back as JSON, json_each() gives true as 1.
+          // json_replace leaves documents without the field untouched, a field that isn't an array is kept as it is
+          String element = "CASE e.type WHEN 'true' THEN 'true' WHEN 'false' THEN 'false' WHEN 'null' THEN 'null' " +
+              "WHEN 'object' THEN e.value WHEN 'array' THEN e.value ELSE json_quote(e.value) END";
+          value = String.format("json_replace(%1$s, ?, CASE WHEN json_type(%2$s.value, ?) = 'array' " +
+              "THEN (SELECT json_group_array(json(%3$s)) FROM json_each(%2$s.value, ?) e WHERE %3$s IS NOT %4$s) " +
+              "ELSE json(%2$s.value -> ?) END)", value, collName, element, isJson ? bind : "json_quote(?)");
+          params.add(path);
+          params.add(path);
+          params.add(path);
+          params.add(param);
+          params.add(path);
+          break;
+      }
+    }
+    return value;
+  }
+
+  /**
+   * Runs bulk updates and deletes in the background in chunks,
+   * so other writes are not blocked by one long statement.
+   *
+   * <pre>
+   * collection("User").bulk(op -> op.chunkSize = 500).removeField("password");
+   * </pre>
+   */
+  public BulkOperation bulk(BulkOptionsHandler option) {
+    BulkOptions op = new BulkOptions();
+    option.handle(op);
+    return new BulkOperation(this, db, op);
+  }
+
+  public BulkOperation bulk() {
+    return bulk(op -> {});
+  }
+
   public String removeField(String field) {
     Object[] params = {"$." + field};
     return db.run("update", "UPDATE " + collName + " SET value = json_remove(value, ?)", params, klass, collName);
@@ -417,10 +970,14 @@ public class Collection {
   }
   
   public int count() {
+    String query = "SELECT count(*) FROM " + collName
+        + (ExpiryIndex.isEnabled(db.indexes, collName) ? " WHERE " + ExpiryIndex.notExpired(collName) : "");
     try {
-      PreparedStatement stmt = db.conn.prepareStatement("SELECT count(*) FROM " + collName);
-      ResultSet rs = stmt.executeQuery();
-      return rs.getInt(1);
+      return db.read(() -> {
+        try (PreparedStatement stmt = db.conn.prepareStatement(query)) {
+          return stmt.executeQuery().getInt(1);
+        }
+      });
     } catch (SQLException e) {
       e.printStackTrace();
     }
@@ -435,7 +992,33 @@ public class Collection {
     db.watch(collName, event, watcher);
   }
   
-  private String JSONstringify(Object value) {
+  public void unwatch(WatchHandler watcher) {
+    db.unwatch(collName, watcher);
+  }
+  
+  /**
+   * Publishes the changes of the collection from when a subscriber subscribes.
+   * Up to 1024 changes wait for a subscriber to request them before it gets an error.
+   */
+  public Publisher<WatchData> changes() {
+    return changes(1024);
+  }
+  
+  public Publisher<WatchData> changes(int bufferSize) {
+    return new ChangePublisher(db, collName, bufferSize);
+  }
+  
+  String getName() {
+    return collName;
+  }
+  
+  // field names are used in the schema and can't be bound as params
+  static void validateField(String field) {
+    if (field == null) throw new NullPointerException();
+    if (!field.matches("[\\w\\.\\[\\]]+")) throw new IllegalArgumentException("Invalid field name: " + field);
+  }
+  
+  String JSONstringify(Object value) {
     try {
       return mapper.writeValueAsString(value);
     } catch (JsonProcessingException e) {
@@ -489,6 +1072,11 @@ public class Collection {
     }
   }
   
+  // largest numeric id saved, the sequence continues from it
+  long lastId() {
+    return ids.last();
+  }
+  
   private Map<String, String> getIdField() {
     try {
       return getIdField(klass.getDeclaredConstructor().newInstance());
@@ -503,7 +1091,7 @@ public class Collection {
   
     if(model instanceof Map) {
       idValues.put("name", "_id");
-      idValues.put("id", NanoIdUtils.randomNanoId());
+      idValues.put("id", idGenerator.generate());
       return idValues;
     }
     
@@ -511,12 +1099,15 @@ public class Collection {
       try {
         Field field = model.getClass().getDeclaredField(idField);
         field.setAccessible(true);
-        if (field.get(model) == null) {
-          // generate random id
-          field.set(model, NanoIdUtils.randomNanoId());
+        Object id = field.get(model);
+        if (Utils.isUnsetId(id)) {
+          // generate a new id
+          field.set(model, numericId ? Utils.toIdType(field.getType(), ids.next()) : idGenerator.generate());
+        } else if (numericId) {
+          ids.use(((Number) id).longValue());
         }
         idValues.put("name", field.getName());
-        idValues.put("id", (String) field.get(model));
+        idValues.put("id", String.valueOf(field.get(model)));
       } catch (NoSuchFieldException | IllegalAccessException e) {
         e.printStackTrace();
       }
@@ -526,8 +1117,8 @@ public class Collection {
           if (field.isAnnotationPresent(Id.class)) {
             field.setAccessible(true);
             if (field.get(model) == null) {
-              // generate random id
-              field.set(model, NanoIdUtils.randomNanoId());
+              // generate a new id
+              field.set(model, idGenerator.generate());
             }
             idValues.put("name", field.getName());
             idValues.put("id", (String) field.get(model));
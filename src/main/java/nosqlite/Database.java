@@ -1,11 +1,23 @@
 package nosqlite;
 
 import nosqlite.annotations.Document;
+import nosqlite.handlers.BackupOptions;
+import nosqlite.handlers.BackupOptionsHandler;
 import nosqlite.handlers.CollectionConfig;
 import nosqlite.handlers.CollectionConfigHandler;
+import nosqlite.handlers.TransactionHandler;
+import nosqlite.processor.DocumentIndexProcessor;
 import org.reflections8.Reflections;
+import org.sqlite.SQLiteConnection;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
@@ -13,61 +25,161 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * A database file with its own connection and writer thread.
+ * The static methods use a default database, configured with collection(config).
+ *
+ * <pre>
+ * Database users = new Database(config -> config.dbPath = "db/users.db");
+ * users.getCollection(User.class).save(john);
+ * </pre>
+ *
  * @author Johan Wirén
  */
 public class Database {
-  private static Map<String, Collection> collections = new ConcurrentHashMap<>();
-  private static Connection conn;
-  private static DbHelper dbHelper = null;
   private static Database singleton = null;
-  
+  // scanning is slow, so it's only done once for each set of packages
+  private static final Map<String, Set<Class<?>>> scannedDocuments = new ConcurrentHashMap<>();
+
+  // options for the default database
   public static boolean runAsync = true;
   public static boolean useBrowser = false;
   public static boolean useWatchers = false;
   public static boolean runTestSuite = false;
   public static String dbPath = "db/data.db";
 
-  private Database() {
+  private final Map<String, Collection> collections = new ConcurrentHashMap<>();
+  private final CollectionConfig config;
+  private Connection conn;
+  private DbHelper dbHelper = null;
+  private Persister persister = null;
+  private ExpirySweeper sweeper = null;
+
+  public Database(CollectionConfigHandler config) {
+    this(toConfig(config));
+  }
+
+  public Database(String dbPath) {
+    this(config -> config.dbPath = dbPath);
+  }
+
+  public Database(CollectionConfig config) {
+    this.config = config;
     initDatabase();
   }
 
   private void initDatabase() {
-    if(!dbPath.equals(":memory:")) {
-      dbPath = dbPath.replaceAll("^/", "");
-      File dir = new File(dbPath);
+    String path = config.dbPath;
+    if(!path.equals(":memory:")) {
+      path = path.replaceAll("^/", "");
+      File dir = new File(path);
       if(dir.getParentFile() != null) {
         dir.getParentFile().mkdirs();
       }
     }
 
+    // the file is loaded into memory and only written by the persister
+    boolean inMemory = config.inMemory && !path.equals(":memory:");
+    
     try {
-      conn = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
-      dbHelper = new DbHelper(conn, true, runAsync);
+      conn = DriverManager.getConnection("jdbc:sqlite:" + (inMemory ? ":memory:" : path));
+      if (inMemory && new File(path).exists()) {
+        ((SQLiteConnection) conn).getDatabase().restore("main", path, null);
+      }
+      StorageProfile.of(config).apply(conn);
+      dbHelper = new DbHelper(conn, true, config.runAsync,
+          config.queueCapacity, config.overflowPolicy, config.interactiveWeight);
+      dbHelper.setCoalesceWrites(config.coalesceWrites);
     } catch (SQLException e) {
       e.printStackTrace();
       return;
     }
+    
+    // stopped before the last persist
+    sweeper = new ExpirySweeper(dbHelper, config.sweepInterval);
+    dbHelper.onClose(sweeper::close);
+    
+    if (inMemory) {
+      persister = new Persister(dbHelper, path, config.persistInterval);
+      // the last changes are persisted before the writer thread stops, also on shutdown
+      dbHelper.onClose(persister::close);
+    }
+
+    if(config.documents != null) {
+      for(Class<?> k : config.documents) {
+        register(k);
+      }
+    }
+
+    for(Class<?> k : findDocuments(config)) {
+      if(config.runTestSuite || !k.getPackage().getName().contains("test_entities")) {
+        register(k);
+      }
+    }
+  }
+
+  // tables are created when a collection is used the first time
+  private void register(Class<?> klass) {
+    String name = collectionName(klass);
+    collections.putIfAbsent(name, new Collection(dbHelper, klass, name));
+  }
+
+  /**
+   * Finds @Document classes in the index written by the annotation processor,
+   * or by scanning the configured packages. The whole classpath is only scanned
+   * when neither is available.
+   */
+  private static Set<Class<?>> findDocuments(CollectionConfig config) {
+    if(config.packages != null) {
+      return scannedDocuments.computeIfAbsent(String.join(",", config.packages),
+          key -> new Reflections((Object[]) config.packages).getTypesAnnotatedWith(Document.class));
+    }
+
+    Set<Class<?>> indexed = indexedDocuments();
+    if(!indexed.isEmpty()) return indexed;
+
+    if(config.documents != null || !config.scanClasspath) return Collections.emptySet();
+    return scannedDocuments.computeIfAbsent("", key -> new Reflections().getTypesAnnotatedWith(Document.class));
+  }
 
-    Set<Class<?>> klasses = new Reflections().getTypesAnnotatedWith(Document.class);
-    for(Class<?> k : klasses) {
-      if(runTestSuite || !k.getPackage().getName().contains("test_entities")) {
-        String name = k.getAnnotation(Document.class).collection();
-        name = name.equals("default_coll") ? k.getSimpleName() : name;
-        collections.putIfAbsent(name, new Collection(dbHelper, k, name));
+  private static Set<Class<?>> indexedDocuments() {
+    Set<Class<?>> klasses = new HashSet<>();
+    ClassLoader loader = Thread.currentThread().getContextClassLoader();
+    if(loader == null) loader = Database.class.getClassLoader();
+
+    try {
+      Enumeration<URL> indexes = loader.getResources(DocumentIndexProcessor.INDEX);
+      while(indexes.hasMoreElements()) {
+        try(BufferedReader reader = new BufferedReader(new InputStreamReader(indexes.nextElement().openStream(), StandardCharsets.UTF_8))) {
+          String line;
+          while((line = reader.readLine()) != null) {
+            if(line.trim().isEmpty()) continue;
+            try {
+              klasses.add(Class.forName(line.trim(), false, loader));
+            } catch (ClassNotFoundException e) {
+              System.err.println("@Document class in index not found: " + line.trim());
+            }
+          }
+        }
       }
+    } catch (IOException e) {
+      e.printStackTrace();
     }
+    return klasses;
   }
 
   /**
    *
    * @return name of collections that contains saved documents
    */
-  public static List<String> collectionNames() {
+  public List<String> getCollectionNames() {
     String tablesQuery = dbHelper.get("SELECT GROUP_CONCAT(name) FROM sqlite_master WHERE type='table'");
-    String[] tables = tablesQuery.split(",");
     List<String> asList = new ArrayList<>();
+    if(tablesQuery == null) return asList;
+    String[] tables = tablesQuery.split(",");
 
     for(String table : tables) {
+      // skip tables used internally for indexes and bookkeeping
+      if(table.startsWith("_nosqlite_") || table.startsWith("sqlite_")) continue;
       int count = Integer.parseInt(dbHelper.get(String.format("SELECT COUNT(*) FROM %s", table)));
       if(count > 0) {
         asList.add(table);
@@ -76,38 +188,204 @@ public class Database {
     return asList;
   }
 
-  public static Collection collection(Class klass) { return collection(klass.getSimpleName()); }
-  
-  public static Collection collection() { return collection("default_coll"); }
+  public Collection getCollection(Class klass) {
+    Collection coll = collections.computeIfAbsent(collectionName(klass), name -> new Collection(dbHelper, klass, name));
+    coll.createTable();
+    return coll;
+  }
 
-  public static Collection collection(String doc) {
-    if(singleton == null) singleton = new Database();
-    Collection coll = collections.get(doc);
-    if(coll == null) {
-      coll = new Collection(dbHelper,null, doc);
-      collections.put(doc, coll);
-    }
+  public Collection getCollection() { return getCollection("default_coll"); }
+
+  // documents of the class in a table with another name, like the partitions of a time series
+  Collection getCollection(Class klass, String name) {
+    Collection coll = collections.computeIfAbsent(name, n -> new Collection(dbHelper, klass, n));
+    coll.createTable();
+    return coll;
+  }
+
+  // drops the table with its indexes, the next getCollection() creates it again
+  void dropCollection(String name) {
+    Collection coll = collections.remove(name);
+    if (coll != null) coll.drop();
+  }
+
+  DbHelper dbHelper() {
+    return dbHelper;
+  }
+
+  public Collection getCollection(String doc) {
+    Collection coll = collections.computeIfAbsent(doc, name -> new Collection(dbHelper, null, name));
+    coll.createTable();
     return coll;
   }
+
+  /**
+   * Runs the operations as one task on the writer thread, in a single transaction.
+   * Watchers are notified after commit. If an operation fails or the handler throws,
+   * nothing is written. Other writes are queued until the handler returns,
+   * so don't wait for them in the handler.
+   *
+   * <pre>
+   * database.runTransaction(tx -> {
+   *   tx.getCollection(Order.class).save(order);
+   *   tx.getCollection(Product.class).update("id==" + order.productId, op -> op.inc("stock", -1));
+   * });
+   * </pre>
+   *
+   * @return true if the transaction was committed
+   */
+  public boolean runTransaction(TransactionHandler handler) {
+    return dbHelper.runTransaction(() -> handler.handle(this));
+  }
   
+  /**
+   * Copies the database to the file while it's in use, with SQLite's online backup API.
+   * Writes queued during the backup run between its steps and are included in the copy.
+   *
+   * @return true if the backup completed
+   */
+  public boolean backup(Path path) {
+    return backup(path, op -> {});
+  }
+  
+  /**
+   * <pre>
+   * database.backup(Paths.get("backup/data.db"), op -> {
+   *   op.pagesPerSecond = 5000;
+   *   op.onProgress = progress -> System.out.println(progress.copiedPages + "/" + progress.totalPages);
+   * });
+   * </pre>
+   */
+  public boolean backup(Path path, BackupOptionsHandler options) {
+    if (path == null) throw new NullPointerException();
+    BackupOptions op = new BackupOptions();
+    options.handle(op);
+    
+    try {
+      if (path.toAbsolutePath().getParent() != null) Files.createDirectories(path.toAbsolutePath().getParent());
+    } catch (IOException e) {
+      e.printStackTrace();
+      return false;
+    }
+    return dbHelper.backup(path.toString(), op);
+  }
+  
+  /**
+   * Writes a compacted copy of the database with VACUUM INTO.
+   * Smaller than a backup, but writes wait until the copy is done.
+   * The file must not exist.
+   *
+   * @return true if the snapshot was written
+   */
+  public boolean snapshot(Path path) {
+    if (path == null) throw new NullPointerException();
+    try {
+      if (path.toAbsolutePath().getParent() != null) Files.createDirectories(path.toAbsolutePath().getParent());
+    } catch (IOException e) {
+      e.printStackTrace();
+      return false;
+    }
+    return dbHelper.snapshot(path.toString());
+  }
+  
+  public CollectionConfig getConfig() {
+    return config;
+  }
+
+  /**
+   * Writes an in-memory database to its file now, instead of waiting for the next persist
+   *
+   * @return false if the database isn't in memory or the write failed
+   */
+  public boolean persist() {
+    return persister != null && persister.persist();
+  }
+  
+  /**
+   * Finishes queued writes and closes the connection.
+   * An in-memory database is persisted first.
+   */
+  public void close() {
+    dbHelper.close();
+  }
+
+  /**
+   *
+   * @return name of collections that contains saved documents in the default database
+   */
+  public static List<String> collectionNames() {
+    return getDefault().getCollectionNames();
+  }
+
+  /**
+   * Runs the operations in a single transaction on the default database
+   *
+   * <pre>
+   * transaction(tx -> {
+   *   collection(Order.class).save(order);
+   *   collection("Log").save(entry);
+   * });
+   * </pre>
+   *
+   * @return true if the transaction was committed
+   */
+  public static boolean transaction(TransactionHandler handler) {
+    return getDefault().runTransaction(handler);
+  }
+  
+  public static Collection collection(Class klass) { return getDefault().getCollection(klass); }
+
+  public static Collection collection() { return getDefault().getCollection(); }
+
+  public static Collection collection(String doc) {
+    return getDefault().getCollection(doc);
+  }
+
   // Must be called before other collection calls
   public static void collection(CollectionConfigHandler config) {
-      CollectionConfig op = new CollectionConfig();
-      config.handle(op);
-      collection(op);
+      collection(toConfig(config));
   }
-  
+
   // Must be called before other collection calls
-  public static void collection(CollectionConfig config) {
+  public static synchronized void collection(CollectionConfig config) {
     if(singleton == null) {
       runAsync = config.runAsync;
       dbPath = config.dbPath;
       useBrowser = config.useBrowser;
       useWatchers = config.useWatcher;
       runTestSuite = config.runTestSuite;
-      singleton = new Database();
+      singleton = new Database(config);
     } else {
       System.err.println("collection with config must be called before any other collection call");
     }
   }
+
+  /**
+   *
+   * @return the database used by the static collection methods
+   */
+  public static synchronized Database getDefault() {
+    if(singleton == null) {
+      CollectionConfig config = new CollectionConfig();
+      config.runAsync = runAsync;
+      config.dbPath = dbPath;
+      config.useBrowser = useBrowser;
+      config.useWatcher = useWatchers;
+      config.runTestSuite = runTestSuite;
+      singleton = new Database(config);
+    }
+    return singleton;
+  }
+
+  static String collectionName(Class<?> klass) {
+    Document document = klass.getAnnotation(Document.class);
+    if(document == null || document.collection().equals("default_coll")) return klass.getSimpleName();
+    return document.collection();
+  }
+
+  private static CollectionConfig toConfig(CollectionConfigHandler config) {
+    CollectionConfig op = new CollectionConfig();
+    config.handle(op);
+    return op;
+  }
 }
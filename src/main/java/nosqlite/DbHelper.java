@@ -2,12 +2,19 @@ package nosqlite;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import nosqlite.annotations.TableLayout;
+import nosqlite.handlers.BackupOptions;
+import nosqlite.handlers.BackupProgress;
 import nosqlite.handlers.WatchData;
 import nosqlite.handlers.WatchHandler;
 import org.sqlite.Function;
+import org.sqlite.SQLiteConnection;
+import org.sqlite.core.Codes;
 import nosqlite.utilities.Rewriter;
 import nosqlite.utilities.Utils;
 
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.sql.*;
 import java.util.*;
@@ -21,12 +28,31 @@ import java.util.regex.Pattern;
 @SuppressWarnings("unchecked")
 class DbHelper {
   Connection conn;
-  private final BlockingDeque<Task> tasks = new LinkedBlockingDeque<>();
-  private final Map<String, List<WatchHandler>> watchers = new HashMap<>();
-  private final Map<String, Map<String, List<WatchHandler>>> eventWatchers = new HashMap<>();
+  final IndexRegistry indexes;
+  private final WriteQueue<Task> tasks;
+  // writes that can wait behind interactive writes
+  private static final Set<String> BULK_METHODS = new HashSet<>(Arrays.asList("queryMany", "import", "bulk"));
+  // held while a task executes, so tasks run by callers don't interleave with the writer thread
+  private final Object writeLock = new Object();
+  private final Map<String, List<WatchHandler>> watchers = new ConcurrentHashMap<>();
+  private final Map<String, Map<String, List<WatchHandler>>> eventWatchers = new ConcurrentHashMap<>();
+  // collections stored WITHOUT ROWID, their rows are identified by key instead of rowid
+  private final Set<String> withoutRowid = ConcurrentHashMap.newKeySet();
   private AtomicBoolean isRunning = new AtomicBoolean(true);
+  private final AtomicBoolean closed = new AtomicBoolean(false);
+  private final List<Runnable> closeHooks = new CopyOnWriteArrayList<>();
+  // removed on close, or every closed database would be kept until the JVM exits
+  private final Thread shutdownHook = new Thread(this::close);
+  private final List<Runnable> maintenance = new CopyOnWriteArrayList<>();
+  private final AtomicBoolean maintaining = new AtomicBoolean(false);
   private boolean runAsync;
   private boolean useRegex;
+  private volatile boolean coalesceWrites = false;
+  // queued tasks searched for writes of the same document
+  private static final int COALESCE_WINDOW = 1024;
+  // compiled once instead of for every row REGEXP is evaluated on
+  private static final Map<String, Pattern> patterns = new ConcurrentHashMap<>();
+  private static final int MAX_PATTERNS = 1000;
   private final ObjectMapper mapper = new ObjectMapper();
   ThreadPoolExecutor watchExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(5);
   
@@ -36,19 +62,67 @@ class DbHelper {
   private class Task<T> {
     String method;
     String query;
+    // filter of an update, the updated documents are selected with it
+    String where;
     Object[] params;
+    int setParams;
     Class<T> coll;
     String collName;
     CompletableFuture<String[]> future;
+    Work work;
+    // collection and key of a full document write that can be coalesced
+    String docKey;
+    // earlier writes of the same document, completed with the result of this one
+    List<Task> merged;
     
-    public Task(String method, String query, Object[] params, Class<T> coll, String collName, CompletableFuture<String[]> future) {
+    public Task(String method, String query, String where, Object[] params, int setParams, Class<T> coll, String collName, CompletableFuture<String[]> future) {
       this.method = method;
       this.query = query;
+      this.where = where;
       this.params = params;
+      this.setParams = setParams;
       this.coll = coll;
       this.collName = collName;
       this.future = future;
     }
+    
+    public Task(String method, Work work, CompletableFuture<String[]> future) {
+      this.method = method;
+      this.work = work;
+      this.future = future;
+    }
+  }
+  
+  /**
+   * Watcher events of a running transaction, emitted after commit,
+   * and hooks that reset state the transaction created, run after rollback
+   */
+  private static class Transaction {
+    final List<Runnable> events = new ArrayList<>();
+    final List<Runnable> rollbacks = new ArrayList<>();
+    Exception failure;
+  }
+  
+  // set on the thread running a transaction, writes from that thread aren't queued
+  private final ThreadLocal<Transaction> transaction = new ThreadLocal<>();
+  // the driver holds the connection during a backup, so reads are queued to run between its steps
+  private volatile Thread backupThread = null;
+  
+  /**
+   * Read that may have to wait for a running backup
+   */
+  @FunctionalInterface
+  interface Read<T> {
+    T read() throws SQLException;
+  }
+  
+  /**
+   * Unit of work executed on the writer thread,
+   * for operations that need more than one statement
+   */
+  @FunctionalInterface
+  interface Work {
+    String execute() throws SQLException;
   }
   
   /**
@@ -58,26 +132,39 @@ class DbHelper {
    * @param conn The database connection
    */
   DbHelper(Connection conn, boolean useRegex, boolean runAsync) throws SQLException {
+    this(conn, useRegex, runAsync, 10000, WriteQueue.BLOCK, 4);
+  }
+  
+  /**
+   * @param queueCapacity     max number of queued tasks in each lane
+   * @param overflowPolicy    "block", "fail" or "caller-runs" when a lane is full
+   * @param interactiveWeight interactive tasks taken for every bulk task
+   */
+  DbHelper(Connection conn, boolean useRegex, boolean runAsync,
+           int queueCapacity, String overflowPolicy, int interactiveWeight) throws SQLException {
     this.conn = conn;
+    this.tasks = new WriteQueue<>(queueCapacity, overflowPolicy, interactiveWeight);
+    this.indexes = new IndexRegistry(conn);
     this.runAsync = runAsync;
     this.useRegex = useRegex;
     if (useRegex) addRegex(conn);
+    addGeoDistance(conn);
+    QueryExplainer.addExaminedCounter(conn);
     
     if (runAsync) {
       new Thread(() -> {
         while (isRunning.get() || !tasks.isEmpty()) {
+          Task task;
           try {
-            Task task = tasks.take();
-            
-            if (task.method.equals("queryMany")) {
-              String[] future = {"insert", queryMany(task.query, task.params, task.coll, task.collName)};
-              task.future.complete(future);
-            } else {
-              String[] future = {task.method, query(task.query, task.params, task.collName)};
-              task.future.complete(future);
-            }
-          } catch (InterruptedException | SQLException e) {
+            task = tasks.take();
+          } catch (InterruptedException e) {
             e.printStackTrace();
+            continue;
+          }
+          
+          if (task.docKey != null) task = coalesce(task);
+          synchronized (writeLock) {
+            execute(task);
           }
         }
         
@@ -89,15 +176,128 @@ class DbHelper {
         } catch (SQLException e) {
           e.printStackTrace();
         }
-      }).start();
+      }, "nosqlite-writer").start();
+    }
+    
+    Runtime.getRuntime().addShutdownHook(shutdownHook);
+  }
+  
+  private void execute(Task task) {
+    try {
+      if (task.work != null) {
+        complete(task, new String[] {task.method, work(task.work)});
+      } else if (task.method.equals("queryMany")) {
+        complete(task, new String[] {"insert", queryMany(task.query, task.params, task.coll, task.collName)});
+      } else {
+        complete(task, new String[] {task.method, query(task.query, task.where, task.params, task.setParams, task.collName)});
+      }
+    } catch (SQLException e) {
+      e.printStackTrace();
+      complete(task, new String[] {task.method, null});
+    } catch (RuntimeException | Error e) {
+      // keep the writer running, the caller gets the failure
+      task.future.completeExceptionally(e);
+      if (task.merged != null) {
+        for (Task merged : (List<Task>) task.merged) merged.future.completeExceptionally(e);
+      }
+    }
+  }
+  
+  private void complete(Task task, String[] result) {
+    task.future.complete(result);
+    // the merged writes were replaced by this one, only its caller notifies watchers
+    if (task.merged != null) {
+      for (Task merged : (List<Task>) task.merged) merged.future.complete(new String[] {"none", result[1]});
     }
+  }
+  
+  /**
+   * Last write wins for queued writes of the same document. The latest write runs in place of the first,
+   * the earlier ones complete with its result. Writes of other documents are passed over,
+   * but not other writes to the collection or transactions, since they may depend on the document.
+   */
+  private Task coalesce(Task first) {
+    List<Task> later = tasks.removeMerged(task -> {
+      if (task.docKey != null) return task.docKey.equals(first.docKey) ? WriteQueue.Match.MERGE : WriteQueue.Match.SKIP;
+      return task.work != null || first.collName.equals(task.collName) ? WriteQueue.Match.STOP : WriteQueue.Match.SKIP;
+    }, COALESCE_WINDOW);
+    if (later.isEmpty()) return first;
     
-    Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    Task latest = later.remove(later.size() - 1);
+    later.add(0, first);
+    latest.merged = later;
+    return latest;
+  }
+  
+  void setCoalesceWrites(boolean coalesceWrites) {
+    this.coalesceWrites = coalesceWrites;
+  }
+  
+  /**
+   * Queues the task, or runs it on this thread when its lane is full
+   * and the overflow policy is "caller-runs"
+   */
+  private void submit(Task task) {
+    try {
+      if (tasks.put(task, BULK_METHODS.contains(task.method))) return;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      task.future.completeExceptionally(e);
+      return;
+    }
+    synchronized (writeLock) {
+      execute(task);
+    }
+  }
+  
+  /**
+   * Runs the hook when the database is closed, before the writer thread stops
+   */
+  void onClose(Runnable hook) {
+    closeHooks.add(hook);
+  }
+  
+  boolean isAsync() {
+    return runAsync;
+  }
+  
+  /**
+   * Runs the task after each write of a caller when runAsync is off, instead of on a thread
+   * of its own that would share the connection with the caller. Skipped while a transaction is open.
+   */
+  void afterWrites(Runnable task) {
+    maintenance.add(task);
+  }
+  
+  private void maintain() {
+    if (runAsync || maintenance.isEmpty() || closed.get()) return;
+    try {
+      if (!conn.getAutoCommit()) return;
+    } catch (SQLException e) {
+      return;
+    }
+    // the tasks write too, they don't run again for their own writes
+    if (!maintaining.compareAndSet(false, true)) return;
+    try {
+      for (Runnable task : maintenance) task.run();
+    } finally {
+      maintaining.set(false);
+    }
   }
   
   void close() {
+    if (closed.getAndSet(true)) return;
+    try {
+      Runtime.getRuntime().removeShutdownHook(shutdownHook);
+    } catch (IllegalStateException e) {
+      // closed by the hook, the JVM is shutting down
+    }
+    for (Runnable hook : closeHooks) hook.run();
     isRunning.set(false);
     
+    // wake up the writer thread if it's waiting for tasks
+    if (runAsync) tasks.add(new Task("none", () -> null, new CompletableFuture<>()));
+    
     if (!runAsync) {
       try {
         conn.close();
@@ -108,13 +308,38 @@ class DbHelper {
   }
   
   <T> String run(String method, String query, Object[] params, Class<T> coll, String collName) {
+    return run(method, query, null, params, params == null ? 0 : params.length, coll, collName, false);
+  }
+  
+  /**
+   * Runs the update with the filter appended, and selects the updated documents with the same filter
+   *
+   * @param where     filter of the update, like " WHERE key = ?", or null to update all documents
+   * @param setParams number of leading params that belongs to the SET clause,
+   *                  the rest belongs to the filter
+   */
+  <T> String update(String query, String where, Object[] params, int setParams, Class<T> coll, String collName) {
+    return run("update", query, where, params, setParams, coll, collName, false);
+  }
+  
+  /**
+   * Writes the whole document with the key params[0]. With coalesceWrites,
+   * queued writes of the same document are merged into the latest one.
+   */
+  <T> String upsert(String method, String query, Object[] params, Class<T> coll, String collName) {
+    return run(method, query, null, params, params.length, coll, collName, true);
+  }
+  
+  private <T> String run(String method, String query, String where, Object[] params, int setParams, Class<T> coll, String collName, boolean upsert) {
     String[] get = new String[2];
     // get[0] == event
     // get[1] == document
     
-    if (runAsync) {
+    if (runAsync && transaction.get() == null) {
       CompletableFuture<String[]> future = new CompletableFuture<>();
-      tasks.add(new Task(method, query, params, coll, collName, future));
+      Task task = new Task(method, query, where, params, setParams, coll, collName, future);
+      if (upsert && coalesceWrites) task.docKey = collName + ":" + params[0];
+      submit(task);
       try {
         get = future.get();
       } catch (InterruptedException | ExecutionException e) {
@@ -127,11 +352,12 @@ class DbHelper {
           get[1] = queryMany(query, params, coll, collName);
         } else {
           get[0] = method;
-          get[1] = query(query, params, collName);
+          get[1] = query(query, where, params, setParams, collName);
         }
       } catch (SQLException e) {
-        e.printStackTrace();
+        failed(e);
       }
+      maintain();
     }
     
     if (!query.startsWith("CREATE")) {
@@ -156,20 +382,233 @@ class DbHelper {
     return run(method, query, null, coll, collName);
   }
   
-  private String query(String query, Object[] params, String collName) throws SQLException {
-    PreparedStatement stmt = conn.prepareStatement(query);
-    if (params != null) {
-      for (int i = 0; i < params.length; i++) {
-        Utils.setParams(i + 1, params[i], stmt);
+  /**
+   * Runs the work on the writer thread and waits for it to finish.
+   * Watchers are not notified.
+   *
+   * @return result of the work, or null if it failed
+   */
+  String run(String method, Work work) {
+    if (transaction.get() != null) return work(work);
+    if (!runAsync) {
+      String result = work(work);
+      maintain();
+      return result;
+    }
+    
+    CompletableFuture<String[]> future = new CompletableFuture<>();
+    submit(new Task(method, work, future));
+    try {
+      return future.get()[1];
+    } catch (ExecutionException e) {
+      // errors like AssertionError reach the caller, like they do without the writer thread
+      if (e.getCause() instanceof Error) throw (Error) e.getCause();
+      e.printStackTrace();
+    } catch (InterruptedException e) {
+      e.printStackTrace();
+    }
+    return null;
+  }
+  
+  private String work(Work work) {
+    try {
+      return work.execute();
+    } catch (SQLException e) {
+      failed(e);
+      return null;
+    }
+  }
+  
+  // a failed write rolls back the transaction it's part of
+  private void failed(Exception e) {
+    e.printStackTrace();
+    Transaction tx = transaction.get();
+    if (tx != null && tx.failure == null) tx.failure = e;
+  }
+  
+  /**
+   * Runs the work in a single transaction, rolls back on failure.
+   * Joins the running transaction if there is one.
+   */
+  String transaction(Work work) throws SQLException {
+    if (!conn.getAutoCommit()) return work.execute();
+    
+    conn.setAutoCommit(false);
+    try {
+      String result = work.execute();
+      conn.commit();
+      return result;
+    } catch (Throwable e) {
+      // the driver commits when auto-commit is turned back on, so every failure must roll back
+      conn.rollback();
+      throw e;
+    } finally {
+      conn.setAutoCommit(true);
+    }
+  }
+  
+  /**
+   * Runs the body on the writer thread in a single transaction.
+   * Writes made by the body are executed directly instead of being queued,
+   * and watchers are notified after commit. If any write fails, or the body throws,
+   * everything is rolled back. Errors are thrown again after the rollback.
+   *
+   * @return true if the transaction was committed
+   */
+  boolean runTransaction(Runnable body) {
+    // nested transactions are part of the outer one
+    if (transaction.get() != null) {
+      body.run();
+      return true;
+    }
+    
+    Transaction tx = new Transaction();
+    boolean committed = false;
+    try {
+      committed = "committed".equals(run("transaction", () -> runTransaction(tx, body)));
+    } finally {
+      if (!committed) {
+        // tables and indexes created in the transaction were rolled back with it
+        indexes.reload();
+        tx.rollbacks.forEach(Runnable::run);
       }
     }
+    return committed;
+  }
+  
+  private String runTransaction(Transaction tx, Runnable body) throws SQLException {
+    transaction.set(tx);
+    try {
+      conn.setAutoCommit(false);
+      body.run();
+      if (tx.failure != null) throw tx.failure;
+      conn.commit();
+    } catch (Exception e) {
+      if (tx.failure != e) e.printStackTrace();
+      conn.rollback();
+      return null;
+    } catch (Throwable e) {
+      // errors are thrown to the caller, but nothing may be committed when auto-commit is turned back on
+      conn.rollback();
+      throw e;
+    } finally {
+      transaction.remove();
+      conn.setAutoCommit(true);
+    }
     
-    if (query.startsWith("DROP") || query.startsWith("DELETE")) {
+    tx.events.forEach(Runnable::run);
+    return "committed";
+  }
+  
+  /**
+   * Runs the hook on the caller after the running transaction is rolled back,
+   * outside of the transaction. Does nothing when there is no transaction.
+   */
+  void onRollback(Runnable hook) {
+    Transaction tx = transaction.get();
+    if (tx != null) tx.rollbacks.add(hook);
+  }
+  
+  /**
+   * Copies the database with the online backup API, a few pages at a time.
+   * Runs on the writer thread, and queued writes are executed between the steps
+   * on the same connection, so they are included in the backup instead of restarting it.
+   * The driver holds the connection for the whole backup, so reads from other threads
+   * are queued as well.
+   *
+   * @return true if the backup completed
+   */
+  boolean backup(String dest, BackupOptions options) {
+    String result = run("backup", () -> {
+      BackupProgress progress = new BackupProgress(dest, 0, 0, false);
+      long started = System.nanoTime();
+      
+      int rc;
+      if (runAsync) backupThread = Thread.currentThread();
+      try {
+        rc = ((SQLiteConnection) conn).getDatabase().backup("main", dest, (remaining, total) -> {
+          progress.copiedPages = total - remaining;
+          progress.totalPages = total;
+          if (remaining == 0) return;
+          // exceptions can't be thrown through the native backup loop
+          try {
+            if (options.onProgress != null) options.onProgress.handle(progress);
+          } catch (RuntimeException e) {
+            e.printStackTrace();
+          }
+          runBetweenSteps(options, progress.copiedPages, started);
+        }, 100, 10, Math.max(1, options.pagesPerStep));
+      } finally {
+        backupThread = null;
+      }
+      
+      if (rc != Codes.SQLITE_OK) throw new SQLException("Backup to " + dest + " failed with code " + rc);
+      progress.done = true;
+      if (options.onProgress != null) options.onProgress.handle(progress);
+      return "done";
+    });
+    return "done".equals(result);
+  }
+  
+  /**
+   * Runs queued tasks while the backup waits for its next step.
+   * With a copy rate, tasks are run until the next step is due,
+   * otherwise only the tasks already queued are run.
+   */
+  private void runBetweenSteps(BackupOptions options, long copiedPages, long started) {
+    long due = options.pagesPerSecond > 0
+        ? started + copiedPages * 1_000_000_000L / options.pagesPerSecond
+        : System.nanoTime();
+    int queued = tasks.size();
+    
+    try {
+      while (true) {
+        long wait = due - System.nanoTime();
+        Task task;
+        if (!runAsync) {
+          if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+          return;
+        } else if (wait > 0) {
+          task = tasks.poll(wait, TimeUnit.NANOSECONDS);
+        } else {
+          task = queued-- > 0 ? tasks.poll() : null;
+        }
+        if (task == null) return;
+        execute(task);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+  
+  /**
+   * Writes a compacted copy of the database with VACUUM INTO.
+   * The copy is made in one statement, so writes wait until it's done.
+   *
+   * @return true if the snapshot was written
+   */
+  boolean snapshot(String dest) {
+    String result = run("snapshot", () -> {
+      try (PreparedStatement stmt = conn.prepareStatement("VACUUM INTO ?")) {
+        stmt.setString(1, dest);
+        stmt.executeUpdate();
+      }
+      return "done";
+    });
+    return "done".equals(result);
+  }
+  
+  private String query(String query, String where, Object[] params, int setParams, String collName) throws SQLException {
+    try (PreparedStatement stmt = conn.prepareStatement(where == null ? query : query + where)) {
+      if (params != null) {
+        for (int i = 0; i < params.length; i++) {
+          Utils.setParams(i + 1, params[i], stmt);
+        }
+      }
       stmt.executeUpdate();
-      return "deleted";
     }
     
-    stmt.executeUpdate();
+    if (query.startsWith("DROP") || query.startsWith("DELETE")) return "deleted";
     if (params == null) return null;
     
     if (query.startsWith("INSERT")) {
@@ -179,25 +618,45 @@ class DbHelper {
     
     if (query.startsWith("CREATE")) return "created";
     
-    if (params.length > 2) {
-      String where = " " + query.substring(query.indexOf("WHERE"));
-      Object[] p = new Object[params.length - 2];
-      for (int i = 2; i < params.length; i++) {
-        p[i - 2] = params[i];
+    if (where != null) {
+      // the filter params are always last
+      Object[] p = new Object[params.length - setParams];
+      for (int i = setParams; i < params.length; i++) {
+        p[i - setParams] = params[i];
       }
       return get("SELECT value FROM " + collName + where, p);
     }
     return "updated all";
   }
   
+  /**
+   * Runs the read on this thread, or between the steps of a running backup
+   */
+  <T> T read(Read<T> read) throws SQLException {
+    if (backupThread != null && backupThread != Thread.currentThread()) {
+      List<T> result = new ArrayList<>(1);
+      String done = run("none", () -> {
+        result.add(read.read());
+        return "read";
+      });
+      if (done == null) throw new SQLException("Read failed during backup");
+      return result.get(0);
+    }
+    return read.read();
+  }
+  
   // get don't require thread safety
   String get(String query) {
     return get(query, null);
   }
   
   String get(String query, Object[] params) {
-    try {
-      PreparedStatement stmt = conn.prepareStatement(query);
+    if (backupThread != null && backupThread != Thread.currentThread()) {
+      return run("none", () -> get(query, params));
+    }
+    
+    // an open statement would lock the tables it reads from
+    try (PreparedStatement stmt = conn.prepareStatement(query)) {
       if (params != null) {
         for (int i = 0; i < params.length; i++) {
           Utils.setParams(i + 1, params[i], stmt);
@@ -229,7 +688,10 @@ class DbHelper {
       isJson = get("SELECT json_valid(?)", params).equals("1");
     }
     
+    // inside a transaction the documents are committed with it
+    boolean autoCommit = true;
     try {
+      autoCommit = conn.getAutoCommit();
       conn.setAutoCommit(false);
       PreparedStatement stmt = conn.prepareStatement(query);
       
@@ -266,7 +728,7 @@ class DbHelper {
         }
       }
       
-      conn.commit();
+      if (autoCommit) conn.commit();
       stmt.close();
       
       // don't bother converting json if there's no watchers
@@ -276,10 +738,10 @@ class DbHelper {
       
       return "[" + String.join(",", jsonDocs) + "]";
     } catch (SQLException | JsonProcessingException e) {
-      e.printStackTrace();
+      failed(e);
     } finally {
       try {
-        conn.setAutoCommit(true);
+        if (autoCommit) conn.setAutoCommit(true);
       } catch (SQLException e) {
         e.printStackTrace();
       }
@@ -288,7 +750,7 @@ class DbHelper {
   }
   
   private String findAsJson(String collName, String filter, Object[] params, int limit) {
-    Map<String, List<String>> filters = generateWhereClause(filter);
+    Map<String, List<String>> filters = generateWhereClause(collName, filter);
     String q = String.format("SELECT GROUP_CONCAT(value) FROM (SELECT value FROM %1$s"
         + filters.get("query").get(0) + (limit == 0 ? ")" : " LIMIT %2$d)"), collName, limit);
   
@@ -296,42 +758,107 @@ class DbHelper {
   }
   
   String findAsJson(String collName, String filter, String sort, int limit, int offset) {
-    String orderBy = "";
-    String[] order = new String[2];
-    if (sort != null) {
-      if (sort.endsWith("<")) {
-        order[0] = "$." + sort.substring(0, sort.length() - 1);
-        order[1] = "ASC";
-      } else if (sort.endsWith(">")) {
-        order[0] = "$." + sort.substring(0, sort.length() - 1);
-        order[1] = "DESC";
-      } else {
-        order = sort.split("==|=");
-        order[0] = "$." + order[0];
-      }
-      orderBy = " ORDER BY json_extract(value, ?) " + order[1];
+    List params = new ArrayList();
+    String q = "SELECT GROUP_CONCAT(value) FROM (" + select(collName, filter, sort, limit, offset, params) + ")";
+    
+//    System.out.println(q); // debug
+    
+    return get(q, params.toArray());
+  }
+  
+  /**
+   * Reads the matching documents as one JSON array of UTF-8 bytes and parses it with the reader.
+   * SQLite concatenates the rows, so there is a single step through JDBC,
+   * and the array is never decoded to a String
+   */
+  <T> List<T> find(String collName, String filter, String sort, int limit, int offset, ObjectReader reader) {
+    List params = new ArrayList();
+    String q = "SELECT '[' || GROUP_CONCAT(value) || ']' FROM ("
+        + select(collName, filter, sort, limit, offset, params) + ")";
+    
+    if (backupThread != null && backupThread != Thread.currentThread()) {
+      List<T>[] docs = new List[1];
+      run("none", () -> {
+        docs[0] = readArray(q, params.toArray(), reader);
+        return "read";
+      });
+      return docs[0] == null ? new ArrayList<>() : docs[0];
     }
-
-    if (filter == null) {
-      String q = String.format("SELECT GROUP_CONCAT(value) FROM (SELECT value FROM %1$s" +
-              orderBy + (limit == 0 ? ")" : " LIMIT %2$d OFFSET %3$d)"), collName, limit, offset);
-      if(sort != null) {
-        Object[] params = { order[0] };
-        return get(q, params);
+    return readArray(q, params.toArray(), reader);
+  }
+  
+  private <T> List<T> readArray(String query, Object[] params, ObjectReader reader) {
+    try (PreparedStatement stmt = conn.prepareStatement(query)) {
+      for (int i = 0; i < params.length; i++) {
+        Utils.setParams(i + 1, params[i], stmt);
       }
-      return get(q);
+      
+      ResultSet rs = stmt.executeQuery();
+      // no documents found
+      byte[] json = rs.next() ? rs.getBytes(1) : null;
+      if (json != null) return reader.readValue(json);
+    } catch (SQLException | IOException e) {
+      e.printStackTrace();
     }
+    return new ArrayList<>();
+  }
+  
+  private String select(String collName, String filter, String sort, int limit, int offset, List params) {
+    return select(collName, filter, sort, limit, offset, params, "value");
+  }
+  
+  // SELECT for the documents matching the filter, the parameters are added to params
+  String select(String collName, String filter, String sort, int limit, int offset, List params, String columns) {
+    return select(collName, filter, sort, limit, offset, params, columns, null);
+  }
+  
+  // the condition is checked before the filter, explain() counts the rows read with it
+  String select(String collName, String filter, String sort, int limit, int offset, List params, String columns, String condition) {
+    List<SortKey> sortKeys = SortKey.parseAll(sort);
+    String rowId = rowId(collName);
+    String orderBy = sortKeys.isEmpty() ? "" : SortKey.orderBy(sortKeys, "value", rowId);
+    String limits = limit == 0 ? "" : String.format(" LIMIT %d OFFSET %d", limit, offset);
+    List<String> conditions = new ArrayList<>();
+    if (condition != null) conditions.add(condition);
     
-    Map<String, List<String>> filters = generateWhereClause(filter);
-    String q = String.format("SELECT GROUP_CONCAT(value) FROM (SELECT value FROM %1$s"
-        + filters.get("query").get(0) + orderBy + (limit == 0 ? ")" : " LIMIT %2$d OFFSET %3$d)"), collName, limit, offset);
-    
-//    System.out.println(q); // debug
+    if (filter != null) {
+      Map<String, List<String>> filters = generateWhereClause(collName, filter);
+      conditions.add(filters.get("query").get(0).substring(" WHERE".length()).trim());
+      params.addAll(populateParams(filters));
+      
+      // best text search matches first
+      if (sortKeys.isEmpty() && filters.containsKey("rank")) {
+        orderBy = String.format(" ORDER BY (SELECT rank FROM %1$s WHERE %1$s MATCH ? AND rowid = %2$s.rowid)",
+            TextIndex.table(collName), collName);
+        params.add(filters.get("rank").get(0));
+      }
+    }
+    // expired documents are hidden until the sweeper deletes them
+    if (ExpiryIndex.isEnabled(indexes, collName)) conditions.add(ExpiryIndex.notExpired(collName));
     
-    List params = populateParams(filters);
-    if (sort != null) params.add(order[0]);
+    String where = "";
+    if (conditions.size() == 1) where = " WHERE " + conditions.get(0);
+    if (conditions.size() > 1) where = " WHERE (" + String.join(") AND (", conditions) + ")";
     
-    return get(q, params.toArray());
+    if (sortKeys.isEmpty() || limit == 0) {
+      return "SELECT " + columns + " FROM " + collName + where + orderBy + limits;
+    }
+    // a page is sorted by the row ids first, which an index on the sort fields covers without reading
+    // the documents, and only the documents on the page are read
+    return String.format("SELECT %1$s FROM (SELECT %2$s AS _row FROM %3$s%4$s%5$s%6$s) _page JOIN %3$s ON %3$s.%2$s = _page._row%7$s",
+        columns, rowId, collName, where, orderBy, limits, SortKey.orderBy(sortKeys, collName + ".value", collName + "." + rowId));
+  }
+  
+  String rowId(String collName) {
+    return withoutRowid.contains(collName) ? "key" : "rowid";
+  }
+  
+  void setLayout(String collName, TableLayout layout) {
+    if (layout == TableLayout.WITHOUT_ROWID) {
+      withoutRowid.add(collName);
+    } else {
+      withoutRowid.remove(collName);
+    }
   }
   
   String deleteDocs(String collName, String filter, int limit, Class klass) {
@@ -339,7 +866,7 @@ class DbHelper {
       return run("delete", String.format("DELETE FROM %1$s", collName), klass, collName);
     }
     
-    Map<String, List<String>> filters = generateWhereClause(filter);
+    Map<String, List<String>> filters = generateWhereClause(collName, filter);
     String q;
     if (limit == 0) {
       q = String.format("DELETE FROM %1$s" + filters.get("query").get(0), collName);
@@ -352,9 +879,10 @@ class DbHelper {
     String deletedDocs;
     String deleted;
     if(filter.startsWith("key=")) {
-      Object[] param = { params.get(1) };
+      Object[] param = { params.get(0) };
       deletedDocs = get("SELECT value FROM " + collName + " WHERE key = ?", param);
-      deleted = run("delete", "DELETE FROM " + collName + " WHERE key = ?", param, klass, collName);
+      // a missing id has nothing to delete, the writer isn't needed
+      deleted = deletedDocs == null ? "none" : run("delete", "DELETE FROM " + collName + " WHERE key = ?", param, klass, collName);
     } else {
       deletedDocs = findAsJson(collName, filter, params.toArray(), limit);
       deleted = run("delete", q, params.toArray(), klass, collName);
@@ -370,19 +898,40 @@ class DbHelper {
     return deletedDocs;
   }
   
+  // watchers are added and removed while events are emitted on other threads
   void watch(String collName, WatchHandler watcher) {
-    watchers.putIfAbsent(collName, new ArrayList<>());
-    watchers.get(collName).add(watcher);
+    watchers.computeIfAbsent(collName, k -> new CopyOnWriteArrayList<>()).add(watcher);
   }
   
   void watch(String collName, String event, WatchHandler watcher) {
-    eventWatchers.putIfAbsent(collName, new HashMap<>());
-    eventWatchers.get(collName).putIfAbsent(event.toLowerCase(), new ArrayList<>());
-    eventWatchers.get(collName).get(event.toLowerCase()).add(watcher);
+    eventWatchers.computeIfAbsent(collName, k -> new ConcurrentHashMap<>())
+        .computeIfAbsent(event.toLowerCase(), k -> new CopyOnWriteArrayList<>()).add(watcher);
   }
   
-  void updateWatchers(String collName, String event, String docs, Class coll) {
+  void unwatch(String collName, WatchHandler watcher) {
+    watchers.computeIfPresent(collName, (k, list) -> {
+      list.remove(watcher);
+      return list.isEmpty() ? null : list;
+    });
+    eventWatchers.computeIfPresent(collName, (k, events) -> {
+      events.replaceAll((event, list) -> {
+        list.remove(watcher);
+        return list;
+      });
+      events.values().removeIf(List::isEmpty);
+      return events.isEmpty() ? null : events;
+    });
+  }
+  
+  void updateWatchers(String collName, String event, String docs, Class klass) {
     if (event.equals("none")) return;
+    // documents of a collection without a class are maps
+    Class coll = klass == null ? Map.class : klass;
+    Transaction tx = transaction.get();
+    if (tx != null) {
+      tx.events.add(() -> updateWatchers(collName, event, docs, coll));
+      return;
+    }
     WatchData watchData = null;
     if(!runAsync) try {
       watchData = new WatchData(collName, event,
@@ -391,7 +940,11 @@ class DbHelper {
       e.printStackTrace();
     }
     
-    if (eventWatchers.get(collName) != null && eventWatchers.get(collName).get(event) != null) {
+    // the lists are kept, a watcher can be removed while the event is emitted
+    List<WatchHandler> eventHandlers = eventWatchers.getOrDefault(collName, Collections.emptyMap()).get(event);
+    List<WatchHandler> handlers = watchers.get(collName);
+    
+    if (eventHandlers != null) {
       if (runAsync) watchExecutor.submit(() -> {
           WatchData watchDataAsync = null;
           try {
@@ -402,14 +955,14 @@ class DbHelper {
           }
   
         WatchData finalWatchDataAsync = watchDataAsync;
-        eventWatchers.get(collName).get(event).forEach(w -> w.handle(finalWatchDataAsync));
+        eventHandlers.forEach(w -> w.handle(finalWatchDataAsync));
         });
       else {
         WatchData finalWatchData = watchData;
-        eventWatchers.get(collName).get(event).forEach(w -> w.handle(finalWatchData));
+        eventHandlers.forEach(w -> w.handle(finalWatchData));
       }
     }
-    if (watchers.get(collName) != null) {
+    if (handlers != null) {
       if (runAsync) watchExecutor.submit(() -> {
         WatchData watchDataAsync = null;
         try {
@@ -420,11 +973,11 @@ class DbHelper {
         }
   
         WatchData finalWatchDataAsync = watchDataAsync;
-        watchers.get(collName).forEach(w -> w.handle(finalWatchDataAsync));
+        handlers.forEach(w -> w.handle(finalWatchDataAsync));
       });
       else {
         WatchData finalWatchData1 = watchData;
-        watchers.get(collName).forEach(w -> w.handle(finalWatchData1));
+        handlers.forEach(w -> w.handle(finalWatchData1));
       }
     }
   }
@@ -439,17 +992,43 @@ class DbHelper {
         if (value == null)
           value = "";
         
-        Pattern pattern = Pattern.compile(expression);
+        Pattern pattern = patterns.get(expression);
+        if (pattern == null) {
+          // filters are usually few, so a full cache is most likely filled with one-off expressions
+          if (patterns.size() >= MAX_PATTERNS) patterns.clear();
+          pattern = Pattern.compile(expression);
+          patterns.put(expression, pattern);
+        }
         result(pattern.matcher(value).find() ? 1 : 0);
       }
     });
   }
   
+  private void addGeoDistance(Connection conn) throws SQLException {
+    // GEO_DISTANCE(lat1, lon1, lat2, lon2) in meters, the exact check after the R*Tree lookup
+    Function.create(conn, "GEO_DISTANCE", new Function() {
+      @Override
+      protected void xFunc() throws SQLException {
+        for (int i = 0; i < 4; i++) {
+          if (value_type(i) != Codes.SQLITE_INTEGER && value_type(i) != Codes.SQLITE_FLOAT) {
+            result();
+            return;
+          }
+        }
+        result(GeoIndex.distance(value_double(0), value_double(1), value_double(2), value_double(3)));
+      }
+    });
+  }
+  
   List populateParams(Map<String, List<String>> filters) {
     List params = new ArrayList();
     
     for (int i = 0; i < filters.get("paths").size(); i++) {
-      params.add(filters.get("paths").get(i));
+      // predicates without a path, like text search, bind the value as is
+      if (filters.get("paths").get(i) == null) {
+        params.add(filters.get("values").get(i));
+        continue;
+      }
       String[] inValues = {filters.get("values").get(i)};
       
       if (inValues[0].startsWith("[") && inValues[0].endsWith("]")) {
@@ -488,11 +1067,15 @@ class DbHelper {
     return params;
   }
   
-  Map<String, List<String>> generateWhereClause(String filter) {
+  Map<String, List<String>> generateWhereClause(String collName, String filter) {
     List<String> paths = new ArrayList<>();
     List<String> values = new ArrayList<>();
+    List<String> textSearches = new ArrayList<>();
+    // each predicate as written, and the index that can answer it
+    List<String> predicates = new ArrayList<>();
+    List<String> predicateIndexes = new ArrayList<>();
     
-    String regex =  "(\\s*\\!\\s*)?([\\(\\w\\s\\.\\[\\]]+)\\s*(~~|=~|==|>=|<=|!=|<|>|=)\\s*(([!-%'-{\\}£~\\såäöÅÄÖ]*\\|{0,1}\\&{0,1}[!-%'-{\\}£~\\såäöÅÄÖ])*(?<!\\|))(&&|\\|\\|)?";
+    String regex =  "(\\s*\\!\\s*)?([\\(\\w\\s\\.\\[\\]\\*]+)\\s*(@@|@near|@within|~~|=~|==|>=|<=|!=|<|>|=)\\s*(([!-%'-{\\}£~\\såäöÅÄÖ]*\\|{0,1}\\&{0,1}[!-%'-{\\}£~\\såäöÅÄÖ])*(?<!\\|))(&&|\\|\\|)?";
     
     String query = " WHERE" + new Rewriter(regex) {
       public String replacement() {
@@ -509,10 +1092,48 @@ class DbHelper {
           path = path.replaceAll("^\\(", "");
         }
         
-        paths.add("$." + path);
         String val = group(4).trim();
+        String andOr = group(6) == null ? "" : (group(6).equals("&&") ? "AND" : "OR");
+        
+        predicates.add(path + group(3) + val.replaceAll("\\s*\\)$", ""));
+        if (group(3).equals("@@")) {
+          predicateIndexes.add(TextIndex.table(collName));
+        } else if (group(3).startsWith("@")) {
+          predicateIndexes.add(GeoIndex.table(collName));
+        } else if ((group(3).equals("==") || group(3).equals("=")) && MultikeyIndex.isIndexed(indexes, collName, path)) {
+          predicateIndexes.add(MultikeyIndex.table(collName, path));
+        } else {
+          predicateIndexes.add(Collection.indexName(collName, path));
+        }
+        
+        if (group(3).equals("@@")) {
+          return startParam + textSearch(collName, path, val, paths, values, textSearches) + " " + andOr;
+        }
+        if (group(3).startsWith("@")) {
+          return startParam + geoSearch(collName, group(3), val) + " " + andOr;
+        }
+        
+        // a literal path lets the query planner use an index on the field
+        String field = String.format("json_extract(value, '$.%s')", path);
         String comparator;
         
+        // '^jim' can only match values between 'jim' and 'jin'
+        String range = "";
+        if (isRegex) {
+          String prefix = RegexPrefix.of(val);
+          if (RegexPrefix.isIndexable(prefix)) {
+            String upper = RegexPrefix.upperBound(prefix);
+            range = field + " >= ? AND " + (upper == null ? "" : field + " < ? AND ");
+            paths.add(null);
+            values.add(prefix);
+            if (upper != null) {
+              paths.add(null);
+              values.add(upper);
+            }
+          }
+        }
+        paths.add(path);
+        
         
         if ((group(3).equals("==") || group(3).equals("="))
             && (val.startsWith("[") && val.endsWith("]"))) {
@@ -534,15 +1155,31 @@ class DbHelper {
           comparator = group(3) + " ?";
         }
         
+        String closing = "";
         if (!isRegex && val.endsWith(")")) {
-          comparator += ")";
+          closing = ")";
           val = val.replaceAll("\\s*\\)$", "");
         }
         
         values.add(val);
         
-        String andOr = group(6) == null ? "" : (group(6).equals("&&") ? "AND" : "OR");
-        return String.format(startParam + " json_extract(value, ?) %s %s", comparator, andOr);
+        // equality on an array field matches any element, looked up in the multikey index
+        if ((group(3).equals("==") || group(3).equals("=")) && MultikeyIndex.isIndexed(indexes, collName, path)) {
+          return String.format(startParam + " key IN (SELECT key FROM %s WHERE elem %s)%s %s",
+              MultikeyIndex.table(collName, path), comparator, closing, andOr);
+        }
+        // without the multikey index the elements are read with json_each(). Arrays are extracted
+        // as text starting with '[', so an index on the field still answers both sides of the OR
+        if (group(3).equals("==") || group(3).equals("=")) {
+          paths.add(path);
+          values.add(val);
+          return String.format(startParam + " (%1$s %2$s OR (%1$s >= '[' AND %1$s < '\\' AND EXISTS (SELECT 1 FROM %3$s AND e.value %2$s)))%4$s %5$s",
+              field, comparator, MultikeyIndex.elements(collName + ".value", path), closing, andOr);
+        }
+        if (!range.isEmpty()) {
+          return String.format(startParam + " (%s%s %s)%s %s", range, field, comparator, closing, andOr);
+        }
+        return String.format(startParam + " %s %s%s %s", field, comparator, closing, andOr);
       }
     }.rewrite(filter);
     
@@ -550,8 +1187,71 @@ class DbHelper {
     map.put("query", Collections.singletonList(query));
     map.put("paths", paths);
     map.put("values", values);
+    map.put("predicates", predicates);
+    map.put("predicateIndexes", predicateIndexes);
+    // results are ranked by the first text search
+    if (!textSearches.isEmpty()) map.put("rank", textSearches);
     
     return map;
   }
   
+  /**
+   * Compiles '*@near lat,lon,meters' and '*@within minLat,minLon,maxLat,maxLon'
+   * to a lookup in the geo index. The numbers are written into the query,
+   * the R*Tree compares them as REAL while bound text would be compared as text.
+   */
+  private String geoSearch(String collName, String operator, String args) {
+    String closing = "";
+    if (args.endsWith(")")) {
+      args = args.replaceAll("\\s*\\)$", "");
+      closing = ")";
+    }
+    
+    String[] fields = indexes.get(collName, GeoIndex.TYPE);
+    if (fields == null) {
+      System.err.println("Geo search on '" + collName + "' requires a geo index, see createGeoIndex()");
+      return " 0" + closing;
+    }
+    
+    String[] parts = args.split(",");
+    double[] numbers = new double[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      numbers[i] = Double.parseDouble(parts[i].trim());
+      if (Double.isNaN(numbers[i]) || Double.isInfinite(numbers[i])) {
+        throw new IllegalArgumentException("Invalid coordinate: " + parts[i]);
+      }
+    }
+    
+    String search = operator.equals("@near")
+        ? GeoIndex.near(collName, fields, numbers)
+        : GeoIndex.within(collName, fields, numbers);
+    return " " + search + closing;
+  }
+  
+  /**
+   * Compiles 'field@@query' or '*@@query' to a MATCH against the text index
+   */
+  private String textSearch(String collName, String path, String query,
+                            List<String> paths, List<String> values, List<String> textSearches) {
+    // a trailing parenthesis closes a group unless it belongs to the query
+    String closing = "";
+    if (query.endsWith(")") && query.chars().filter(c -> c == ')').count() > query.chars().filter(c -> c == '(').count()) {
+      query = query.replaceAll("\\s*\\)$", "");
+      closing = ")";
+    }
+    
+    if (indexes.get(collName, TextIndex.TYPE) == null) {
+      System.err.println("Text search on '" + collName + "' requires a text index, see createTextIndex()");
+      return " 0" + closing;
+    }
+    
+    String match = path.equals("*") ? query : "{" + TextIndex.column(path) + "} : (" + query + ")";
+    paths.add(null);
+    values.add(match);
+    textSearches.add(match);
+    
+    String table = TextIndex.table(collName);
+    return String.format(" rowid IN (SELECT rowid FROM %1$s WHERE %1$s MATCH ?)%2$s", table, closing);
+  }
+  
 }
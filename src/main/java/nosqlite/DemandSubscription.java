@@ -0,0 +1,100 @@
+package nosqlite;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Emits items to the subscriber only as far as it has requested them.
+ * Signals are serialized, whichever thread calls drain() emits until
+ * there is no more demand or nothing more to emit.
+ *
+ * @author Johan Wirén
+ */
+abstract class DemandSubscription<T> implements Subscription {
+  private final Subscriber<? super T> subscriber;
+  private final AtomicLong requested = new AtomicLong();
+  private final AtomicInteger wip = new AtomicInteger();
+  private volatile boolean cancelled = false;
+
+  DemandSubscription(Subscriber<? super T> subscriber) {
+    this.subscriber = subscriber;
+  }
+
+  /**
+   * @return the next item, or null if there is none right now
+   */
+  abstract T next() throws Exception;
+
+  // nothing more will be emitted
+  abstract boolean isDone();
+
+  // failure to signal after the items already emitted
+  abstract Throwable error();
+
+  abstract void onCancel();
+
+  @Override
+  public void request(long n) {
+    if (n <= 0) {
+      cancel();
+      subscriber.onError(new IllegalArgumentException("Requested " + n + " items, must be positive"));
+      return;
+    }
+    // demand above Long.MAX_VALUE is unbounded
+    requested.getAndUpdate(r -> r + n < 0 ? Long.MAX_VALUE : r + n);
+    drain();
+  }
+
+  @Override
+  public void cancel() {
+    if (cancelled) return;
+    cancelled = true;
+    onCancel();
+  }
+
+  boolean isCancelled() {
+    return cancelled;
+  }
+
+  final void drain() {
+    if (wip.getAndIncrement() != 0) return;
+
+    int missed = 1;
+    do {
+      long r = requested.get();
+      long emitted = 0;
+      while (emitted != r) {
+        if (cancelled) return;
+        T item;
+        try {
+          item = next();
+        } catch (Exception e) {
+          cancel();
+          subscriber.onError(e);
+          return;
+        }
+        if (item == null) break;
+        subscriber.onNext(item);
+        emitted++;
+      }
+      if (cancelled) return;
+
+      Throwable error = error();
+      if (error != null) {
+        cancel();
+        subscriber.onError(error);
+        return;
+      }
+      if (isDone()) {
+        cancel();
+        subscriber.onComplete();
+        return;
+      }
+      if (emitted != 0 && r != Long.MAX_VALUE) requested.addAndGet(-emitted);
+      missed = wip.addAndGet(-missed);
+    } while (missed != 0);
+  }
+}
@@ -0,0 +1,116 @@
+package nosqlite;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Expiry time of each document that expires, in epoch milliseconds, with an index on the time.
+ * The time is either read from a field or set a fixed time after each save.
+ * Kept in sync by triggers, like the text index, and expired documents are deleted by the sweeper.
+ *
+ * @author Johan Wirén
+ */
+class ExpiryIndex {
+  static final String TYPE = "ttl";
+  static final String NOW = "unixepoch('subsec') * 1000";
+
+  static String table(String collName) {
+    return "_nosqlite_ttl_" + collName;
+  }
+
+  static boolean isEnabled(IndexRegistry indexes, String collName) {
+    return indexes.get(collName, TYPE) != null;
+  }
+
+  /**
+   * Documents that have expired but not been deleted yet are filtered out with this.
+   * One lookup by key for each document read, instead of listing every expired key for each query.
+   */
+  static String notExpired(String collName) {
+    return String.format("NOT EXISTS (SELECT 1 FROM %1$s WHERE %1$s.key = %2$s.key AND expires <= %3$s)",
+        table(collName), collName, NOW);
+  }
+
+  // must be called on the writer thread
+  static void expireAt(DbHelper db, String collName, String field) throws SQLException {
+    create(db, collName, new String[] { "field", field });
+  }
+
+  // must be called on the writer thread
+  static void expireAfter(DbHelper db, String collName, long millis) throws SQLException {
+    create(db, collName, new String[] { "ttl", String.valueOf(millis) });
+  }
+
+  private static void create(DbHelper db, String collName, String[] expiry) throws SQLException {
+    drop(db, collName);
+    String table = table(collName);
+
+    try (Statement stmt = db.conn.createStatement()) {
+      stmt.executeUpdate(String.format("CREATE TABLE %s(key NOT NULL PRIMARY KEY, expires INTEGER NOT NULL) WITHOUT ROWID", table));
+      stmt.executeUpdate(String.format("CREATE INDEX %1$s_expires ON %1$s(expires)", table));
+      stmt.executeUpdate(String.format("INSERT INTO %s SELECT key, %s FROM %s WHERE %s",
+          table, time(expiry, "value"), collName, hasTime(expiry, "value")));
+    }
+    db.indexes.put(collName, TYPE, expiry);
+    createTriggers(db, collName);
+  }
+
+  /**
+   * The triggers are dropped with the collection table, the expiry times are kept when it's migrated
+   */
+  static void createTriggers(DbHelper db, String collName) throws SQLException {
+    String[] expiry = db.indexes.get(collName, TYPE);
+    if (expiry == null) return;
+    String table = table(collName);
+
+    try (Statement stmt = db.conn.createStatement()) {
+      stmt.executeUpdate(String.format("CREATE TRIGGER IF NOT EXISTS %1$s_insert AFTER INSERT ON %2$s BEGIN " +
+          "INSERT OR REPLACE INTO %1$s SELECT new.key, %3$s WHERE %4$s; END",
+          table, collName, time(expiry, "new.value"), hasTime(expiry, "new.value")));
+      stmt.executeUpdate(String.format("CREATE TRIGGER IF NOT EXISTS %1$s_delete AFTER DELETE ON %2$s BEGIN " +
+          "DELETE FROM %1$s WHERE key = old.key; END", table, collName));
+      stmt.executeUpdate(String.format("CREATE TRIGGER IF NOT EXISTS %1$s_update AFTER UPDATE ON %2$s BEGIN " +
+          "DELETE FROM %1$s WHERE key = old.key; " +
+          "INSERT OR REPLACE INTO %1$s SELECT new.key, %3$s WHERE %4$s; END",
+          table, collName, time(expiry, "new.value"), hasTime(expiry, "new.value")));
+    }
+  }
+
+  // must be called on the writer thread
+  static void drop(DbHelper db, String collName) throws SQLException {
+    String table = table(collName);
+    try (Statement stmt = db.conn.createStatement()) {
+      stmt.executeUpdate("DROP TRIGGER IF EXISTS " + table + "_insert");
+      stmt.executeUpdate("DROP TRIGGER IF EXISTS " + table + "_delete");
+      stmt.executeUpdate("DROP TRIGGER IF EXISTS " + table + "_update");
+      stmt.executeUpdate("DROP TABLE IF EXISTS " + table);
+    }
+    db.indexes.remove(collName, TYPE);
+  }
+
+  /**
+   * Deletes up to limit expired documents, the oldest first.
+   * Must be called on the writer thread.
+   *
+   * @return number of deleted documents
+   */
+  static int sweep(DbHelper db, String collName, int limit) throws SQLException {
+    String query = String.format("DELETE FROM %1$s WHERE key IN " +
+        "(SELECT key FROM %2$s WHERE expires <= %3$s ORDER BY expires LIMIT ?)", collName, table(collName), NOW);
+    try (PreparedStatement stmt = db.conn.prepareStatement(query)) {
+      stmt.setInt(1, limit);
+      return stmt.executeUpdate();
+    }
+  }
+
+  private static String time(String[] expiry, String value) {
+    if (expiry[0].equals("ttl")) return String.format("CAST(%s AS INTEGER) + %s", NOW, Long.parseLong(expiry[1]));
+    return String.format("json_extract(%s, '$.%s')", value, expiry[1]);
+  }
+
+  private static String hasTime(String[] expiry, String value) {
+    if (expiry[0].equals("ttl")) return "1";
+    return String.format("json_type(%s, '$.%s') IN ('integer', 'real')", value, expiry[1]);
+  }
+}
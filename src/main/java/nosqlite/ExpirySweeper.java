@@ -0,0 +1,73 @@
+package nosqlite;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes expired documents in the background.
+ * Each batch is a bulk write, so queued interactive writes run between the batches
+ * instead of waiting for every expired document to be deleted.
+ * Without runAsync there is no writer thread to queue on, the caller sweeps after its writes
+ * when the interval has passed, so the deletes never land in a transaction on the shared connection.
+ *
+ * @author Johan Wirén
+ */
+class ExpirySweeper {
+  static final int BATCH_SIZE = 500;
+
+  private final DbHelper db;
+  private final long interval;
+  private final ScheduledExecutorService scheduler;
+  private volatile long lastSweep = System.nanoTime();
+
+  ExpirySweeper(DbHelper db, long interval) {
+    this.db = db;
+    this.interval = TimeUnit.MILLISECONDS.toNanos(interval);
+    if (!db.isAsync()) {
+      scheduler = null;
+      db.afterWrites(this::sweepIfDue);
+      return;
+    }
+
+    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "nosqlite-sweeper");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(this::sweep, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Deletes the expired documents of every collection that expires
+   *
+   * @return number of deleted documents
+   */
+  long sweep() {
+    long deleted = 0;
+    for (String collName : db.indexes.collections(ExpiryIndex.TYPE)) {
+      String batch;
+      do {
+        batch = db.run("bulk", () -> String.valueOf(ExpiryIndex.sweep(db, collName, BATCH_SIZE)));
+        if (batch != null) deleted += Integer.parseInt(batch);
+      } while (batch != null && Integer.parseInt(batch) == BATCH_SIZE);
+    }
+    return deleted;
+  }
+
+  private void sweepIfDue() {
+    if (System.nanoTime() - lastSweep < interval) return;
+    sweep();
+    lastSweep = System.nanoTime();
+  }
+
+  void close() {
+    if (scheduler == null) return;
+    scheduler.shutdown();
+    try {
+      scheduler.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
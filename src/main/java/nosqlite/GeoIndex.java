@@ -0,0 +1,123 @@
+package nosqlite;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * R*Tree index over a latitude and a longitude field of a collection.
+ * Documents without numeric coordinates aren't indexed.
+ * Kept in sync by triggers, like the text index.
+ *
+ * @author Johan Wirén
+ */
+class GeoIndex {
+  static final String TYPE = "geo";
+  static final double EARTH_RADIUS = 6371008.8; // meters
+  private static final double METERS_PER_DEGREE = Math.PI * EARTH_RADIUS / 180;
+
+  static String table(String collName) {
+    return "_nosqlite_geo_" + collName;
+  }
+
+  // must be called on the writer thread
+  static void create(DbHelper db, String collName, String latField, String lonField) throws SQLException {
+    drop(db, collName);
+    String table = table(collName);
+
+    try (Statement stmt = db.conn.createStatement()) {
+      stmt.executeUpdate(String.format("CREATE VIRTUAL TABLE %s USING rtree(id, minLat, maxLat, minLon, maxLon)", table));
+      stmt.executeUpdate(String.format("INSERT INTO %s %s FROM %s WHERE %s",
+          table, point("rowid", "value", latField, lonField), collName, hasPoint("value", latField, lonField)));
+
+      stmt.executeUpdate(String.format("CREATE TRIGGER %1$s_insert AFTER INSERT ON %2$s BEGIN " +
+          "INSERT INTO %1$s %3$s WHERE %4$s; END",
+          table, collName, point("new.rowid", "new.value", latField, lonField), hasPoint("new.value", latField, lonField)));
+      stmt.executeUpdate(String.format("CREATE TRIGGER %1$s_delete AFTER DELETE ON %2$s BEGIN " +
+          "DELETE FROM %1$s WHERE id = old.rowid; END", table, collName));
+      stmt.executeUpdate(String.format("CREATE TRIGGER %1$s_update AFTER UPDATE OF value ON %2$s BEGIN " +
+          "DELETE FROM %1$s WHERE id = old.rowid; " +
+          "INSERT INTO %1$s %3$s WHERE %4$s; END",
+          table, collName, point("new.rowid", "new.value", latField, lonField), hasPoint("new.value", latField, lonField)));
+    }
+    db.indexes.put(collName, TYPE, new String[] { latField, lonField });
+  }
+
+  // must be called on the writer thread
+  static void drop(DbHelper db, String collName) throws SQLException {
+    String table = table(collName);
+    try (Statement stmt = db.conn.createStatement()) {
+      stmt.executeUpdate("DROP TRIGGER IF EXISTS " + table + "_insert");
+      stmt.executeUpdate("DROP TRIGGER IF EXISTS " + table + "_delete");
+      stmt.executeUpdate("DROP TRIGGER IF EXISTS " + table + "_update");
+      stmt.executeUpdate("DROP TABLE IF EXISTS " + table);
+    }
+    db.indexes.remove(collName, TYPE);
+  }
+
+  /**
+   * Compiles 'lat,lon,meters' to an R*Tree lookup of the bounding box,
+   * with the exact distance checked by GEO_DISTANCE()
+   */
+  static String near(String collName, String[] fields, double[] args) {
+    if (args.length != 3) throw new IllegalArgumentException("near requires lat,lon,meters");
+    double lat = args[0], lon = args[1], meters = args[2];
+
+    double dLat = meters / METERS_PER_DEGREE;
+    double minLon = -180, maxLon = 180;
+    double cos = Math.cos(Math.toRadians(lat));
+    // near the poles and across the antimeridian every longitude is a candidate
+    if (cos > 1e-6) {
+      double dLon = dLat / cos;
+      if (lon - dLon >= -180 && lon + dLon <= 180) {
+        minLon = lon - dLon;
+        maxLon = lon + dLon;
+      }
+    }
+
+    return String.format("(%s AND GEO_DISTANCE(%s, %s, %s, %s) <= %s)",
+        candidates(collName, lat - dLat, lat + dLat, minLon, maxLon),
+        field(fields[0]), field(fields[1]), lat, lon, meters);
+  }
+
+  /**
+   * Compiles 'minLat,minLon,maxLat,maxLon' to an R*Tree lookup,
+   * the box is stored with 32 bit floats so the coordinates are checked again
+   */
+  static String within(String collName, String[] fields, double[] args) {
+    if (args.length != 4) throw new IllegalArgumentException("within requires minLat,minLon,maxLat,maxLon");
+    return String.format("(%s AND %s BETWEEN %s AND %s AND %s BETWEEN %s AND %s)",
+        candidates(collName, args[0], args[2], args[1], args[3]),
+        field(fields[0]), args[0], args[2], field(fields[1]), args[1], args[3]);
+  }
+
+  /**
+   * Great-circle distance in meters with the haversine formula
+   */
+  static double distance(double lat1, double lon1, double lat2, double lon2) {
+    double dLat = Math.toRadians(lat2 - lat1);
+    double dLon = Math.toRadians(lon2 - lon1);
+    double a = Math.pow(Math.sin(dLat / 2), 2)
+        + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.pow(Math.sin(dLon / 2), 2);
+    return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+  }
+
+  private static String candidates(String collName, double minLat, double maxLat, double minLon, double maxLon) {
+    return String.format("rowid IN (SELECT id FROM %s WHERE maxLat >= %s AND minLat <= %s AND maxLon >= %s AND minLon <= %s)",
+        table(collName), minLat, maxLat, minLon, maxLon);
+  }
+
+  private static String field(String field) {
+    return "json_extract(value, '$." + field + "')";
+  }
+
+  private static String point(String rowid, String value, String latField, String lonField) {
+    String lat = "json_extract(" + value + ", '$." + latField + "')";
+    String lon = "json_extract(" + value + ", '$." + lonField + "')";
+    return String.format("SELECT %s, %s, %s, %s, %s", rowid, lat, lat, lon, lon);
+  }
+
+  private static String hasPoint(String value, String latField, String lonField) {
+    return String.format("json_type(%1$s, '$.%2$s') IN ('integer', 'real') AND json_type(%1$s, '$.%3$s') IN ('integer', 'real')",
+        value, latField, lonField);
+  }
+}
@@ -0,0 +1,40 @@
+package nosqlite;
+
+/**
+ * Numeric ids of a collection, continuing from the largest key in the table.
+ * Ids set on saved documents move the sequence forward,
+ * so a generated id never replaces a document saved with an explicit id.
+ *
+ * @author Johan Wirén
+ */
+class IdSequence {
+  private final DbHelper db;
+  private final String collName;
+  private long last = -1;
+
+  IdSequence(DbHelper db, String collName) {
+    this.db = db;
+    this.collName = collName;
+  }
+
+  synchronized long next() {
+    load();
+    return ++last;
+  }
+
+  synchronized long last() {
+    load();
+    return last;
+  }
+
+  synchronized void use(long id) {
+    load();
+    if (id > last) last = id;
+  }
+
+  private void load() {
+    if (last >= 0) return;
+    String max = db.get("SELECT MAX(CAST(key AS INTEGER)) FROM " + collName);
+    last = max == null ? 0 : Math.max(0, Long.parseLong(max));
+  }
+}
@@ -0,0 +1,104 @@
+package nosqlite;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of indexes that the query compiler must know about,
+ * like text indexes. Stored in the database so they survive a restart.
+ *
+ * @author Johan Wirén
+ */
+class IndexRegistry {
+  static final String TABLE = "_nosqlite_indexes";
+
+  private final Connection conn;
+  // collection -> type -> fields
+  private final Map<String, Map<String, String[]>> indexes = new ConcurrentHashMap<>();
+  private volatile boolean loaded = false;
+
+  IndexRegistry(Connection conn) {
+    this.conn = conn;
+    // every read checks for expiry, loading later could wait for a running backup
+    load();
+  }
+
+  /**
+   * @return indexed fields, or null if the collection has no index of that type
+   */
+  String[] get(String collName, String type) {
+    load();
+    Map<String, String[]> types = indexes.get(collName);
+    return types == null ? null : types.get(type);
+  }
+
+  /**
+   * @return collections with an index of that type
+   */
+  List<String> collections(String type) {
+    load();
+    List<String> collections = new ArrayList<>();
+    indexes.forEach((collName, types) -> {
+      if (types.containsKey(type)) collections.add(collName);
+    });
+    return collections;
+  }
+
+  // must be called on the writer thread
+  void put(String collName, String type, String[] fields) throws SQLException {
+    load();
+    try (Statement stmt = conn.createStatement()) {
+      stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + TABLE +
+          "(coll TEXT NOT NULL, type TEXT NOT NULL, fields TEXT NOT NULL, PRIMARY KEY(coll, type))");
+    }
+    try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO " + TABLE + " VALUES(?, ?, ?) " +
+        "ON CONFLICT(coll, type) DO UPDATE SET fields=excluded.fields")) {
+      stmt.setString(1, collName);
+      stmt.setString(2, type);
+      stmt.setString(3, String.join(",", fields));
+      stmt.executeUpdate();
+    }
+    indexes.computeIfAbsent(collName, k -> new ConcurrentHashMap<>()).put(type, fields);
+  }
+
+  // must be called on the writer thread
+  void remove(String collName, String type) throws SQLException {
+    load();
+    if (get(collName, type) == null) return;
+    try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM " + TABLE + " WHERE coll = ? AND type = ?")) {
+      stmt.setString(1, collName);
+      stmt.setString(2, type);
+      stmt.executeUpdate();
+    }
+    indexes.get(collName).remove(type);
+  }
+
+  // read again from the table, after a rollback undid changes made since the last load
+  synchronized void reload() {
+    loaded = false;
+    indexes.clear();
+  }
+
+  private void load() {
+    if (loaded) return;
+    synchronized (this) {
+      if (loaded) return;
+      try (Statement stmt = conn.createStatement()) {
+        ResultSet tables = stmt.executeQuery("SELECT count(*) FROM sqlite_master WHERE type='table' AND name='" + TABLE + "'");
+        if (tables.getInt(1) > 0) {
+          ResultSet rs = stmt.executeQuery("SELECT coll, type, fields FROM " + TABLE);
+          while (rs.next()) {
+            indexes.computeIfAbsent(rs.getString(1), k -> new ConcurrentHashMap<>())
+                .put(rs.getString(2), rs.getString(3).split(","));
+          }
+        }
+      } catch (SQLException e) {
+        e.printStackTrace();
+      }
+      loaded = true;
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package nosqlite;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Insertion order of the documents, read by the tailable cursor. SQLite reuses the largest rowid
+ * after that row is deleted, so the rowid can't be the position. The side table numbers each
+ * inserted row with AUTOINCREMENT, which never hands out a number twice.
+ * Kept in sync by triggers, an upsert that updates a document keeps its number.
+ *
+ * @author Johan Wirén
+ */
+class InsertSequence {
+  static final String TYPE = "sequence";
+  private static final String KEYS = "_nosqlite_seq_keys";
+
+  static String table(String collName) {
+    return "_nosqlite_seq_" + collName;
+  }
+
+  static boolean isEnabled(IndexRegistry indexes, String collName) {
+    return indexes.get(collName, TYPE) != null;
+  }
+
+  // must be called on the writer thread
+  static void create(DbHelper db, String collName) throws SQLException {
+    drop(db, collName);
+    String table = table(collName);
+
+    try (Statement stmt = db.conn.createStatement()) {
+      stmt.executeUpdate(String.format("CREATE TABLE %s(seq INTEGER PRIMARY KEY AUTOINCREMENT, row INTEGER NOT NULL UNIQUE)", table));
+      stmt.executeUpdate(String.format("INSERT INTO %s(row) SELECT rowid FROM %s ORDER BY rowid", table, collName));
+    }
+    db.indexes.put(collName, TYPE, new String[] { "rowid" });
+    createTriggers(db, collName);
+  }
+
+  private static void createTriggers(DbHelper db, String collName) throws SQLException {
+    String table = table(collName);
+
+    try (Statement stmt = db.conn.createStatement()) {
+      stmt.executeUpdate(String.format("CREATE TRIGGER %1$s_insert AFTER INSERT ON %2$s BEGIN " +
+          "INSERT OR REPLACE INTO %1$s(row) VALUES(new.rowid); END", table, collName));
+      stmt.executeUpdate(String.format("CREATE TRIGGER %1$s_delete AFTER DELETE ON %2$s BEGIN " +
+          "DELETE FROM %1$s WHERE row = old.rowid; END", table, collName));
+    }
+  }
+
+  // must be called on the writer thread, in the migration before the table is copied
+  static void keepKeys(DbHelper db, String collName) throws SQLException {
+    if (!isEnabled(db.indexes, collName)) return;
+    try (Statement stmt = db.conn.createStatement()) {
+      stmt.executeUpdate("DROP TABLE IF EXISTS temp." + KEYS);
+      stmt.executeUpdate(String.format("CREATE TEMP TABLE %s AS SELECT s.seq, c.key FROM %s s JOIN %s c ON c.rowid = s.row",
+          KEYS, table(collName), collName));
+    }
+  }
+
+  // the copy has new rowids, each document keeps its number so open cursors continue where they were
+  static void restoreKeys(DbHelper db, String collName) throws SQLException {
+    if (!isEnabled(db.indexes, collName)) return;
+    try (Statement stmt = db.conn.createStatement()) {
+      stmt.executeUpdate("DELETE FROM " + table(collName));
+      stmt.executeUpdate(String.format("INSERT INTO %s(seq, row) SELECT k.seq, c.rowid FROM temp.%s k JOIN %s c ON c.key = k.key",
+          table(collName), KEYS, collName));
+      stmt.executeUpdate("DROP TABLE temp." + KEYS);
+    }
+    createTriggers(db, collName);
+  }
+
+  // must be called on the writer thread
+  static void drop(DbHelper db, String collName) throws SQLException {
+    String table = table(collName);
+    try (Statement stmt = db.conn.createStatement()) {
+      stmt.executeUpdate("DROP TRIGGER IF EXISTS " + table + "_insert");
+      stmt.executeUpdate("DROP TRIGGER IF EXISTS " + table + "_delete");
+      stmt.executeUpdate("DROP TABLE IF EXISTS " + table);
+    }
+    db.indexes.remove(collName, TYPE);
+  }
+
+  /**
+   * Documents numbered after seq, in insertion order. The select must have the rowid as _row.
+   */
+  static String after(String collName, String select, long seq, int limit) {
+    return String.format("SELECT s.seq, d.value FROM %1$s s JOIN (%2$s) d ON d._row = s.row " +
+        "WHERE s.seq > %3$d ORDER BY s.seq LIMIT %4$d", table(collName), select, seq, limit);
+  }
+}
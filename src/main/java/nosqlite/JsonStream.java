@@ -0,0 +1,155 @@
+package nosqlite;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import nosqlite.utilities.IdGenerator;
+import nosqlite.utilities.Utils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Import and export of a collection as a JSON array, one document at a time,
+ * so the heap use doesn't grow with the size of the collection.
+ *
+ * @author Johan Wirén
+ */
+class JsonStream {
+  static final int BATCH_SIZE = 1000;
+
+  private final DbHelper db;
+  private final String collName;
+  private final String idField;
+  private final IdGenerator idGenerator;
+  // sequence of numeric ids, null when the ids aren't numeric
+  private final IdSequence ids;
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  JsonStream(DbHelper db, String collName, String idField, IdGenerator idGenerator, IdSequence ids) {
+    this.db = db;
+    this.collName = collName;
+    this.idField = idField;
+    this.idGenerator = idGenerator;
+    this.ids = ids;
+  }
+
+  /**
+   * Parses the array with the streaming parser and saves the documents in batches,
+   * each batch in its own transaction on the writer thread
+   *
+   * @return number of imported documents
+   */
+  long importJson(InputStream in) throws IOException {
+    long imported = 0;
+    List<String[]> batch = new ArrayList<>(BATCH_SIZE);
+
+    try (JsonParser parser = mapper.getFactory().createParser(in)) {
+      if (parser.nextToken() != JsonToken.START_ARRAY) {
+        throw new IOException("Import must be a JSON array");
+      }
+
+      JsonToken token;
+      while ((token = parser.nextToken()) == JsonToken.START_OBJECT) {
+        ObjectNode doc = mapper.readTree(parser);
+        JsonNode id = doc.get(idField);
+        if (id == null || id.isNull()) {
+          // generate a new id, numeric ids come from the same sequence as save()
+          if (ids != null) {
+            doc.put(idField, ids.next());
+          } else {
+            doc.put(idField, idGenerator.generate());
+          }
+          id = doc.get(idField);
+        } else if (ids != null) {
+          ids.use(id.asLong());
+        }
+        batch.add(new String[] { id.asText(), mapper.writeValueAsString(doc) });
+
+        if (batch.size() == BATCH_SIZE) {
+          imported += save(batch);
+          batch.clear();
+        }
+      }
+      if (token != JsonToken.END_ARRAY) {
+        throw new IOException("Import must be an array of objects, found " + token);
+      }
+    }
+
+    imported += save(batch);
+    return imported;
+  }
+
+  private int save(List<String[]> batch) throws IOException {
+    if (batch.isEmpty()) return 0;
+
+    String query = String.format("INSERT INTO %s VALUES(?, json(?)) " +
+        "ON CONFLICT(key) DO UPDATE SET value=json(excluded.value)", collName);
+    String saved = db.run("import", () -> db.transaction(() -> {
+      try (PreparedStatement stmt = db.conn.prepareStatement(query)) {
+        for (String[] doc : batch) {
+          stmt.setString(1, doc[0]);
+          stmt.setString(2, doc[1]);
+          stmt.addBatch();
+        }
+        stmt.executeBatch();
+      }
+      return "imported";
+    }));
+
+    if (saved == null) throw new IOException("Failed to import documents into " + collName);
+    return batch.size();
+  }
+
+  /**
+   * Writes the documents as they are stored, one page at a time in key order.
+   * Short reads don't keep tables locked while the output is written.
+   * Expired documents are left out, and pages are read between the steps of a running backup.
+   *
+   * @return number of exported documents
+   */
+  long exportJson(OutputStream out) throws IOException, SQLException {
+    Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    writer.write('[');
+
+    long exported = 0;
+    Object lastKey = null;
+    List<Object[]> rows;
+    do {
+      List<Object> params = new ArrayList<>();
+      String query = "SELECT key, value FROM (" + db.select(collName, null, null, 0, 0, params, "key, value") + ")"
+          + (lastKey == null ? "" : " WHERE key > ?") + " ORDER BY key LIMIT " + BATCH_SIZE;
+      if (lastKey != null) params.add(lastKey);
+
+      rows = db.read(() -> {
+        List<Object[]> result = new ArrayList<>(BATCH_SIZE);
+        try (PreparedStatement stmt = db.conn.prepareStatement(query)) {
+          for (int i = 0; i < params.size(); i++) {
+            Utils.setParams(i + 1, params.get(i), stmt);
+          }
+          ResultSet rs = stmt.executeQuery();
+          // the key keeps its type, an INTEGER key is compared as a number
+          while (rs.next()) result.add(new Object[] { rs.getObject(1), rs.getString(2) });
+        }
+        return result;
+      });
+
+      for (Object[] row : rows) {
+        if (exported++ > 0) writer.write(',');
+        lastKey = row[0];
+        writer.write((String) row[1]);
+      }
+    } while (rows.size() == BATCH_SIZE);
+
+    writer.write(']');
+    writer.flush();
+    return exported;
+  }
+}
@@ -0,0 +1,85 @@
+package nosqlite;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Index with one row for each element in an array field, filled from json_each().
+ * Equality filters on the field match documents containing the element,
+ * 'tags==sqlite' becomes a lookup in the side table instead of a scan.
+ * Kept in sync by triggers, like the text index.
+ *
+ * @author Johan Wirén
+ */
+class MultikeyIndex {
+  static final String TYPE = "multikey";
+
+  static String table(String collName, String field) {
+    return "_nosqlite_mk_" + collName + "_" + TextIndex.column(field);
+  }
+
+  static boolean isIndexed(IndexRegistry indexes, String collName, String field) {
+    String[] fields = indexes.get(collName, TYPE);
+    return fields != null && Arrays.asList(fields).contains(field);
+  }
+
+  // must be called on the writer thread
+  static void create(DbHelper db, String collName, String field) throws SQLException {
+    drop(db, collName, field);
+    String table = table(collName, field);
+
+    try (Statement stmt = db.conn.createStatement()) {
+      // a document is only listed once for each distinct element
+      stmt.executeUpdate(String.format("CREATE TABLE %s(elem NOT NULL, key TEXT NOT NULL, PRIMARY KEY(elem, key)) WITHOUT ROWID", table));
+      stmt.executeUpdate(String.format("CREATE INDEX %1$s_key ON %1$s(key)", table));
+      stmt.executeUpdate(String.format("INSERT OR IGNORE INTO %s SELECT e.value, c.key FROM %s c, %s",
+          table, collName, elements("c.value", field)));
+
+      stmt.executeUpdate(String.format("CREATE TRIGGER %1$s_insert AFTER INSERT ON %2$s BEGIN " +
+          "INSERT OR IGNORE INTO %1$s SELECT e.value, new.key FROM %3$s; END",
+          table, collName, elements("new.value", field)));
+      stmt.executeUpdate(String.format("CREATE TRIGGER %1$s_delete AFTER DELETE ON %2$s BEGIN " +
+          "DELETE FROM %1$s WHERE key = old.key; END", table, collName));
+      stmt.executeUpdate(String.format("CREATE TRIGGER %1$s_update AFTER UPDATE ON %2$s BEGIN " +
+          "DELETE FROM %1$s WHERE key = old.key; " +
+          "INSERT OR IGNORE INTO %1$s SELECT e.value, new.key FROM %3$s; END",
+          table, collName, elements("new.value", field)));
+    }
+
+    List<String> fields = fields(db, collName);
+    fields.add(field);
+    db.indexes.put(collName, TYPE, fields.toArray(new String[0]));
+  }
+
+  // must be called on the writer thread
+  static void drop(DbHelper db, String collName, String field) throws SQLException {
+    String table = table(collName, field);
+    try (Statement stmt = db.conn.createStatement()) {
+      stmt.executeUpdate("DROP TRIGGER IF EXISTS " + table + "_insert");
+      stmt.executeUpdate("DROP TRIGGER IF EXISTS " + table + "_delete");
+      stmt.executeUpdate("DROP TRIGGER IF EXISTS " + table + "_update");
+      stmt.executeUpdate("DROP TABLE IF EXISTS " + table);
+    }
+
+    List<String> fields = fields(db, collName);
+    if (!fields.remove(field)) return;
+    if (fields.isEmpty()) {
+      db.indexes.remove(collName, TYPE);
+    } else {
+      db.indexes.put(collName, TYPE, fields.toArray(new String[0]));
+    }
+  }
+
+  private static List<String> fields(DbHelper db, String collName) {
+    String[] fields = db.indexes.get(collName, TYPE);
+    return fields == null ? new ArrayList<>() : new ArrayList<>(Arrays.asList(fields));
+  }
+
+  // scalar elements of the field, a field that isn't an array is its own element
+  static String elements(String value, String field) {
+    return String.format("json_each(%s, '$.%s') e WHERE e.type NOT IN ('object', 'array', 'null')", value, field);
+  }
+}
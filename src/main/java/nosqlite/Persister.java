@@ -0,0 +1,86 @@
+package nosqlite;
+
+import nosqlite.handlers.BackupOptions;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes an in-memory database to its file in the background.
+ * Changes are persisted with the online backup at a fixed interval,
+ * which bounds how much is lost if the process dies.
+ * Without runAsync the backup would share the connection with the caller from another thread,
+ * so the caller persists after its writes when the interval has passed.
+ *
+ * @author Johan Wirén
+ */
+class Persister {
+  private final DbHelper db;
+  private final String path;
+  private final long interval;
+  private final ScheduledExecutorService scheduler;
+  // changes and schema version at the last persist
+  private String persisted;
+  private volatile long lastPersist = System.nanoTime();
+
+  Persister(DbHelper db, String path, long interval) {
+    this.db = db;
+    this.path = path;
+    this.interval = TimeUnit.MILLISECONDS.toNanos(interval);
+    this.persisted = version();
+    if (!db.isAsync()) {
+      scheduler = null;
+      db.afterWrites(this::persistIfDue);
+      return;
+    }
+
+    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "nosqlite-persister");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(this::persist, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Copies the database to the file if it has changed since the last time.
+   * The file is replaced in a single transaction, so a crash leaves the previous copy.
+   *
+   * @return false if the copy failed
+   */
+  synchronized boolean persist() {
+    String version = version();
+    if (version == null || version.equals(persisted)) return true;
+
+    if (!db.backup(path, new BackupOptions())) return false;
+    persisted = version;
+    return true;
+  }
+
+  private void persistIfDue() {
+    if (System.nanoTime() - lastPersist < interval) return;
+    persist();
+    lastPersist = System.nanoTime();
+  }
+
+  /**
+   * Stops the schedule and persists the last changes
+   */
+  void close() {
+    if (scheduler != null) {
+      scheduler.shutdown();
+      try {
+        scheduler.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (!persist()) System.err.println("Failed to persist the last changes to " + path);
+  }
+
+  // total_changes() counts rows written by the connection, schema_version covers tables and indexes
+  private String version() {
+    return db.get("SELECT total_changes() || ':' || schema_version FROM pragma_schema_version");
+  }
+}
@@ -0,0 +1,184 @@
+package nosqlite;
+
+import nosqlite.handlers.QueryPlan;
+import nosqlite.utilities.Utils;
+import org.sqlite.Function;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Explains how find() runs a filter, from EXPLAIN QUERY PLAN and by running the query.
+ * The JDBC driver doesn't expose sqlite3_stmt_status(), so the examined rows are counted
+ * by a function that is checked first for every row the planner reads from the collection.
+ *
+ * @author Johan Wirén
+ */
+class QueryExplainer {
+  static final String COUNTER = "NOSQLITE_EXAMINED";
+  private static final ThreadLocal<long[]> examined = new ThreadLocal<>();
+
+  // not deterministic, so it's called for every row instead of once
+  static void addExaminedCounter(Connection conn) throws SQLException {
+    Function.create(conn, COUNTER, new Function() {
+      @Override
+      protected void xFunc() throws SQLException {
+        long[] count = examined.get();
+        if (count != null) count[0]++;
+        result(1);
+      }
+    });
+  }
+
+  static QueryPlan explain(DbHelper db, String collName, String filter, String sort) throws SQLException {
+    QueryPlan queryPlan = new QueryPlan();
+    queryPlan.model = collName;
+
+    List<Object> params = new ArrayList<>();
+    queryPlan.sql = db.select(collName, filter, sort, 0, 0, params, "value");
+    queryPlan.params.addAll(params);
+
+    if (filter != null) {
+      Map<String, List<String>> filters = db.generateWhereClause(collName, filter);
+      for (int i = 0; i < filters.get("predicates").size(); i++) {
+        queryPlan.predicates.add(new QueryPlan.Predicate(filters.get("predicates").get(i),
+            filters.get("predicateIndexes").get(i), false));
+      }
+    }
+    String counted = db.select(collName, filter, sort, 0, 0, new ArrayList<>(), "value", COUNTER + "(" + collName + ".key)");
+
+    db.read(() -> {
+      readPlan(db, queryPlan);
+      run(db, queryPlan, counted);
+      queryPlan.estimatedRows = estimate(db, collName, queryPlan.plan);
+      return queryPlan;
+    });
+
+    List<QueryPlan.Step> steps = flatten(queryPlan.plan, new ArrayList<>());
+    Pattern scan = Pattern.compile("^SCAN (TABLE )?" + Pattern.quote(collName) + "(?!\\w)");
+    queryPlan.fullScan = steps.stream().anyMatch(step -> scan.matcher(step.detail).find());
+    for (QueryPlan.Predicate predicate : queryPlan.predicates) {
+      Pattern index = Pattern.compile("(?<!\\w)" + Pattern.quote(predicate.index) + "(?!\\w)");
+      predicate.indexed = steps.stream().anyMatch(step -> index.matcher(step.detail).find()
+          && (step.detail.startsWith("SEARCH") || step.detail.contains("VIRTUAL TABLE INDEX")));
+    }
+    return queryPlan;
+  }
+
+  private static void readPlan(DbHelper db, QueryPlan queryPlan) throws SQLException {
+    Map<Integer, QueryPlan.Step> steps = new HashMap<>();
+    try (PreparedStatement stmt = db.conn.prepareStatement("EXPLAIN QUERY PLAN " + queryPlan.sql)) {
+      bind(stmt, queryPlan.params);
+      ResultSet rs = stmt.executeQuery();
+      while (rs.next()) {
+        QueryPlan.Step step = new QueryPlan.Step(rs.getInt("id"), rs.getInt("parent"), rs.getString("detail"));
+        steps.put(step.id, step);
+        QueryPlan.Step parent = steps.get(step.parent);
+        if (parent == null) {
+          queryPlan.plan.add(step);
+        } else {
+          parent.children.add(step);
+        }
+      }
+    }
+  }
+
+  private static void run(DbHelper db, QueryPlan queryPlan, String counted) throws SQLException {
+    examined.set(new long[1]);
+    try (PreparedStatement stmt = db.conn.prepareStatement(counted)) {
+      bind(stmt, queryPlan.params);
+      ResultSet rs = stmt.executeQuery();
+      while (rs.next()) queryPlan.returnedRows++;
+      queryPlan.examinedRows = examined.get()[0];
+    } finally {
+      examined.remove();
+    }
+  }
+
+  /**
+   * Rows read from the collection by its only step in the plan, with the statistics from ANALYZE when there are any.
+   * Ranges without statistics are guessed like SQLite does, a quarter of the rows for each bound.
+   */
+  private static long estimate(DbHelper db, String collName, List<QueryPlan.Step> plan) throws SQLException {
+    Pattern access = Pattern.compile("^(SCAN|SEARCH) (TABLE )?" + Pattern.quote(collName) + "(?!\\w)(.*)");
+    Matcher step = null;
+    boolean list = false;
+    for (QueryPlan.Step s : flatten(plan, new ArrayList<>())) {
+      // rows looked up for each branch of an OR can't be told from the plan
+      if (s.detail.startsWith("MULTI-INDEX OR")) return -1;
+      if (s.detail.startsWith("LIST SUBQUERY")) list = true;
+      Matcher m = access.matcher(s.detail);
+      if (m.find()) {
+        if (step != null) return -1;
+        step = m;
+      }
+    }
+    if (step == null) return -1;
+
+    long rows = rows(db, collName);
+    if (step.group(1).equals("SCAN")) return rows;
+
+    String using = step.group(3);
+    Matcher constraint = Pattern.compile("\\((.*)\\)\\s*$").matcher(using);
+    String constraints = constraint.find() ? constraint.group(1).replace("<expr>", "") : "";
+    int bounds = constraints.split("[<>]", -1).length - 1;
+    if (bounds > 0) return rows >> (2 * bounds);
+
+    if (using.contains("PRIMARY KEY") || using.contains("sqlite_autoindex_")) {
+      // looked up once for each key in a list
+      return list ? -1 : Math.min(rows, 1);
+    }
+    Matcher index = Pattern.compile("INDEX (\\S+)").matcher(using);
+    if (!index.find()) return -1;
+    long[] stat = stat(db, collName, index.group(1));
+    return stat.length > 1 ? stat[1] : -1;
+  }
+
+  private static long rows(DbHelper db, String collName) throws SQLException {
+    long[] stat = stat(db, collName, null);
+    if (stat.length > 0) return stat[0];
+    try (PreparedStatement stmt = db.conn.prepareStatement("SELECT count(*) FROM " + collName)) {
+      return stmt.executeQuery().getLong(1);
+    }
+  }
+
+  // the numbers from sqlite_stat1, the rows of the table and the rows for each value of the index
+  private static long[] stat(DbHelper db, String collName, String index) throws SQLException {
+    try (PreparedStatement exists = db.conn.prepareStatement("SELECT 1 FROM sqlite_master WHERE name = 'sqlite_stat1'")) {
+      if (!exists.executeQuery().next()) return new long[0];
+    }
+    String query = "SELECT stat FROM sqlite_stat1 WHERE tbl = ?" + (index == null ? " LIMIT 1" : " AND idx = ?");
+    try (PreparedStatement stmt = db.conn.prepareStatement(query)) {
+      stmt.setString(1, collName);
+      if (index != null) stmt.setString(2, index);
+      ResultSet rs = stmt.executeQuery();
+      if (!rs.next()) return new long[0];
+      String[] parts = rs.getString(1).split(" ");
+      long[] stat = new long[parts.length];
+      for (int i = 0; i < parts.length && parts[i].matches("\\d+"); i++) stat[i] = Long.parseLong(parts[i]);
+      return stat;
+    }
+  }
+
+  private static void bind(PreparedStatement stmt, List<Object> params) throws SQLException {
+    for (int i = 0; i < params.size(); i++) {
+      Utils.setParams(i + 1, params.get(i), stmt);
+    }
+  }
+
+  private static List<QueryPlan.Step> flatten(List<QueryPlan.Step> steps, List<QueryPlan.Step> all) {
+    for (QueryPlan.Step step : steps) {
+      all.add(step);
+      flatten(step.children, all);
+    }
+    return all;
+  }
+}
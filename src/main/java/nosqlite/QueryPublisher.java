@@ -0,0 +1,107 @@
+package nosqlite;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.reactivestreams.Publisher;
+import nosqlite.utilities.Utils;
+import org.reactivestreams.Subscriber;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Publishes the documents matching a filter, read one page at a time as the subscriber requests them.
+ * No statement is kept open between pages, so the tables aren't locked by a slow subscriber.
+ * Without a sort the pages follow the key, otherwise they're read with an offset.
+ *
+ * @author Johan Wirén
+ */
+class QueryPublisher<T> implements Publisher<T> {
+  static final int PAGE_SIZE = 256;
+
+  private final DbHelper db;
+  private final String collName;
+  private final String filter;
+  private final String sort;
+  private final ObjectReader reader;
+
+  QueryPublisher(DbHelper db, String collName, String filter, String sort, ObjectReader reader) {
+    this.db = db;
+    this.collName = collName;
+    this.filter = filter;
+    this.sort = sort;
+    this.reader = reader;
+  }
+
+  @Override
+  public void subscribe(Subscriber<? super T> subscriber) {
+    if (subscriber == null) throw new NullPointerException();
+    subscriber.onSubscribe(new QuerySubscription(subscriber));
+  }
+
+  private class QuerySubscription extends DemandSubscription<T> {
+    private final ArrayDeque<T> page = new ArrayDeque<>(PAGE_SIZE);
+    private Object lastKey = null;
+    private int offset = 0;
+    private boolean exhausted = false;
+
+    QuerySubscription(Subscriber<? super T> subscriber) {
+      super(subscriber);
+    }
+
+    @Override
+    T next() throws Exception {
+      if (page.isEmpty() && !exhausted) fetch();
+      return page.poll();
+    }
+
+    @Override
+    boolean isDone() {
+      return exhausted && page.isEmpty();
+    }
+
+    @Override
+    Throwable error() {
+      return null;
+    }
+
+    @Override
+    void onCancel() {
+      page.clear();
+    }
+
+    private void fetch() throws Exception {
+      List<Object> params = new ArrayList<>();
+      String query;
+      if (sort == null) {
+        query = "SELECT key, value FROM (" + db.select(collName, filter, null, 0, 0, params, "key, value") + ")"
+            + (lastKey == null ? "" : " WHERE key > ?") + " ORDER BY key LIMIT " + PAGE_SIZE;
+        if (lastKey != null) params.add(lastKey);
+      } else {
+        query = db.select(collName, filter, sort, PAGE_SIZE, offset, params, "key, value");
+      }
+
+      List<Object[]> rows = db.read(() -> {
+        List<Object[]> result = new ArrayList<>(PAGE_SIZE);
+        try (PreparedStatement stmt = db.conn.prepareStatement(query)) {
+          for (int i = 0; i < params.size(); i++) {
+            Utils.setParams(i + 1, params.get(i), stmt);
+          }
+          ResultSet rs = stmt.executeQuery();
+          // the key keeps its type, an INTEGER key is compared as a number
+          while (rs.next()) result.add(new Object[] { rs.getObject(1), rs.getBytes(2) });
+        }
+        return result;
+      });
+
+      for (Object[] row : rows) {
+        lastKey = row[0];
+        page.add(reader.readValue((byte[]) row[1]));
+      }
+      offset += rows.size();
+      if (rows.size() < PAGE_SIZE) exhausted = true;
+    }
+  }
+}
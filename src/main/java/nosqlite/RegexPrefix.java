@@ -0,0 +1,117 @@
+package nosqlite;
+
+/**
+ * Literal prefix of an anchored regex, '^(jim|joe).*' -> 'j'.
+ * Every match starts with the prefix, so the filter can add a range
+ * predicate that an index on the field can answer before REGEXP runs.
+ *
+ * @author Johan Wirén
+ */
+class RegexPrefix {
+  private static final String META = "\\.[]{}()*+?|^$";
+
+  /**
+   * @return the literal prefix, or an empty string if there is none
+   */
+  static String of(String regex) {
+    if (regex == null || !regex.startsWith("^") || hasTopLevelAlternation(regex)) return "";
+
+    StringBuilder prefix = new StringBuilder();
+    int i = 1;
+    while (i < regex.length()) {
+      char c = regex.charAt(i);
+      String literal;
+      int next;
+      boolean partial = false;
+
+      if (c == '\\' && i + 1 < regex.length() && !Character.isLetterOrDigit(regex.charAt(i + 1))) {
+        // escaped meta character like '\.'
+        literal = String.valueOf(regex.charAt(i + 1));
+        next = i + 2;
+      } else if (c == '(') {
+        // only plain alternatives like '(jim|joe)'
+        int end = regex.indexOf(')', i);
+        String group = end < 0 ? "" : regex.substring(i + 1, end);
+        if (end < 0 || group.startsWith("?") || !group.matches("[\\w\\s|-]*")) break;
+
+        String[] alternatives = group.split("\\|", -1);
+        literal = commonPrefix(alternatives);
+        for (String alternative : alternatives) {
+          if (!alternative.equals(literal)) partial = true;
+        }
+        next = end + 1;
+      } else if (META.indexOf(c) < 0) {
+        literal = String.valueOf(c);
+        next = i + 1;
+      } else {
+        break;
+      }
+
+      // an optional atom isn't part of every match
+      if (next < regex.length() && "?*{".indexOf(regex.charAt(next)) >= 0) break;
+
+      prefix.append(literal);
+      if (partial) break;
+      i = next;
+    }
+    return prefix.toString();
+  }
+
+  /**
+   * Numbers and booleans are matched by their text, but aren't TEXT
+   * in a range comparison, so a prefix that could match them is skipped
+   */
+  static boolean isIndexable(String prefix) {
+    if (prefix.isEmpty()) return false;
+    char first = prefix.charAt(0);
+    return !Character.isDigit(first) && first != '-';
+  }
+
+  /**
+   * @return the smallest string greater than all strings starting with the prefix,
+   * or null if there is none
+   */
+  static String upperBound(String prefix) {
+    char last = prefix.charAt(prefix.length() - 1);
+    char next = (char) (last + 1);
+    // strings are compared by their UTF-8 bytes, which follow code points outside the surrogates
+    if (last == Character.MAX_VALUE || Character.isSurrogate(last) || Character.isSurrogate(next)) return null;
+    return prefix.substring(0, prefix.length() - 1) + next;
+  }
+
+  private static String commonPrefix(String[] alternatives) {
+    String common = alternatives[0];
+    for (String alternative : alternatives) {
+      int length = 0;
+      while (length < common.length() && length < alternative.length()
+          && common.charAt(length) == alternative.charAt(length)) {
+        length++;
+      }
+      common = common.substring(0, length);
+    }
+    return common;
+  }
+
+  // '^a|b' isn't anchored for the second alternative
+  private static boolean hasTopLevelAlternation(String regex) {
+    int depth = 0;
+    boolean inClass = false;
+    for (int i = 0; i < regex.length(); i++) {
+      char c = regex.charAt(i);
+      if (c == '\\') {
+        i++;
+      } else if (inClass) {
+        if (c == ']') inClass = false;
+      } else if (c == '[') {
+        inClass = true;
+      } else if (c == '(') {
+        depth++;
+      } else if (c == ')') {
+        depth--;
+      } else if (c == '|' && depth == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
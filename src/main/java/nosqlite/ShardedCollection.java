@@ -0,0 +1,357 @@
+package nosqlite;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import nosqlite.annotations.Id;
+import nosqlite.handlers.*;
+import nosqlite.utilities.IdGenerator;
+import nosqlite.utilities.Utils;
+
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/**
+ * Collection spread over several database files, each with its own writer thread.
+ * Documents are routed to a shard by the hash of their id, which is set on the document before it's routed.
+ * Queries without an id are sent to all shards in parallel and merged.
+ *
+ * <pre>
+ * ShardedCollection users = new ShardedCollection(User.class, 4, config -> config.dbPath = "db/users.db");
+ * // creates db/users-0.db to db/users-3.db
+ * </pre>
+ *
+ * @author Johan Wirén
+ */
+@SuppressWarnings("unchecked")
+public class ShardedCollection {
+  private final Database[] databases;
+  private final Collection[] shards;
+  private final Class klass;
+  private final Field idField;
+  private final boolean numericId;
+  private final IdGenerator idGenerator;
+  // largest numeric id of all shards, -1 until it's read
+  private long lastId = -1;
+  private final ExecutorService executor;
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  public ShardedCollection(Class klass, int shardCount, CollectionConfigHandler config) {
+    if (klass == null) throw new NullPointerException();
+    if (shardCount < 1) throw new IllegalArgumentException("shardCount must be at least 1");
+    this.klass = klass;
+    this.idField = Arrays.stream(klass.getDeclaredFields()).filter(field -> field.isAnnotationPresent(Id.class)).findFirst()
+        .orElseThrow(() -> new IllegalArgumentException(klass.getSimpleName() + " has no @Id field to route documents by"));
+    idField.setAccessible(true);
+    this.numericId = Utils.isNumericId(idField.getType());
+    this.idGenerator = Utils.idGenerator(klass);
+    this.databases = new Database[shardCount];
+    this.shards = new Collection[shardCount];
+
+    // ignore failure on field name mismatch
+    mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    for (int i = 0; i < shardCount; i++) {
+      CollectionConfig op = new CollectionConfig();
+      config.handle(op);
+      op.dbPath = shardPath(op.dbPath, i);
+      databases[i] = new Database(op);
+      shards[i] = databases[i].getCollection(klass);
+    }
+
+    executor = Executors.newFixedThreadPool(shardCount, runnable -> {
+      Thread thread = new Thread(runnable, "nosqlite-shard");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  // db/users.db -> db/users-0.db
+  private static String shardPath(String dbPath, int shard) {
+    if (dbPath.equals(":memory:")) return dbPath;
+    int dot = dbPath.lastIndexOf('.');
+    if (dot <= dbPath.lastIndexOf('/')) return dbPath + "-" + shard;
+    return dbPath.substring(0, dot) + "-" + shard + dbPath.substring(dot);
+  }
+
+  public int shardCount() {
+    return shards.length;
+  }
+
+  Collection shard(String id) {
+    return shards[Math.floorMod(id.hashCode(), shards.length)];
+  }
+
+  /**
+   * A Map is saved as a document of the collection's class, the id is set on the map as well
+   */
+  public <T> T save(Object document) {
+    if (document == null) throw new NullPointerException();
+    String id = assignId(document);
+    return shard(id).save(toDocument(document));
+  }
+
+  public <T> List<T> save(List<T> documents) {
+    return Arrays.asList(save(documents.toArray()));
+  }
+
+  public <T> T[] save(Object[] documents) {
+    return saveMany(documents);
+  }
+
+  public <T> T[] saveMany(Object[] documents) {
+    if (documents == null) throw new NullPointerException();
+    Map<Collection, List<Object>> byShard = new HashMap<>();
+
+    for (Object doc : documents) {
+      if (doc == null) throw new NullPointerException();
+      String id = assignId(doc);
+      byShard.computeIfAbsent(shard(id), s -> new ArrayList<>()).add(toDocument(doc));
+    }
+
+    List<Future<?>> writes = new ArrayList<>();
+    byShard.forEach((shard, docs) -> writes.add(executor.submit(() -> shard.saveMany(docs.toArray()))));
+    for (Future<?> write : writes) await(write);
+
+    return (T[]) documents;
+  }
+
+  public <T> T findById(String id) {
+    if (id == null) throw new NullPointerException();
+    return shard(id).findById(id);
+  }
+
+  public String findByIdAsJson(String id) {
+    if (id == null) throw new NullPointerException();
+    return shard(id).findByIdAsJson(id);
+  }
+
+  public <T> List<T> find() {
+    return find(null, null, 0, 0);
+  }
+
+  public <T> List<T> find(String filter) {
+    return find(filter, null, 0, 0);
+  }
+
+  public <T> List<T> find(String filter, int limit) {
+    return find(filter, null, limit, 0);
+  }
+
+  public <T> List<T> find(FindOptionsHandler option) {
+    FindOptions op = new FindOptions();
+    option.handle(op);
+    return find(op.filter, op.sort, op.limit, op.offset);
+  }
+
+  public <T> List<T> find(String filter, String sort, int limit, int offset) {
+    List<T> docs = new ArrayList<>();
+    for (JsonNode node : findNodes(filter, sort, limit, offset)) {
+      try {
+        docs.add((T) mapper.treeToValue(node, klass));
+      } catch (JsonProcessingException e) {
+        e.printStackTrace();
+      }
+    }
+    return docs;
+  }
+
+  public <T> T findOne(String filter) {
+    List docs = find(filter, 1);
+    return docs.size() > 0 ? (T) docs.get(0) : null;
+  }
+
+  public String findAsJson(FindOptionsHandler option) {
+    FindOptions op = new FindOptions();
+    option.handle(op);
+    return findAsJson(op.filter, op.sort, op.limit, op.offset);
+  }
+
+  public String findAsJson(String filter) {
+    return findAsJson(filter, null, 0, 0);
+  }
+
+  public String findAsJson(String filter, String sort, int limit, int offset) {
+    StringJoiner json = new StringJoiner(",", "[", "]");
+    for (JsonNode node : findNodes(filter, sort, limit, offset)) {
+      json.add(node.toString());
+    }
+    return json.toString();
+  }
+
+  /**
+   * Each shard returns its first limit + offset documents,
+   * which are merged in sort order before offset and limit are applied
+   */
+  private List<JsonNode> findNodes(String filter, String sort, int limit, int offset) {
+    int shardLimit = limit == 0 ? 0 : limit + offset;
+    List<String> results = fanOut(shard -> shard.findAsJson(filter, sort, shardLimit, 0));
+
+    List<JsonNode> merged = new ArrayList<>();
+    for (String json : results) {
+      try {
+        mapper.readTree(json).forEach(merged::add);
+      } catch (JsonProcessingException e) {
+        e.printStackTrace();
+      }
+    }
+
+    List<SortKey> sortKeys = SortKey.parseAll(sort);
+    // stable sort keeps the order within each shard
+    if (!sortKeys.isEmpty()) merged.sort(SortKey.comparator(sortKeys));
+
+    int from = Math.min(offset, merged.size());
+    int to = limit == 0 ? merged.size() : Math.min(from + limit, merged.size());
+    return merged.subList(from, to);
+  }
+
+  public int count() {
+    int count = 0;
+    for (Integer shardCount : fanOut(Collection::count)) count += shardCount;
+    return count;
+  }
+
+  public String deleteById(String id) {
+    if (id == null) throw new NullPointerException();
+    return shard(id).deleteById(id);
+  }
+
+  public String delete(Object document) {
+    if (document == null) throw new NullPointerException();
+    Object id = idOf(document);
+    if (Utils.isUnsetId(id)) throw new IllegalArgumentException("The document has no id, it hasn't been saved");
+    return deleteById(String.valueOf(id));
+  }
+
+  /**
+   * @return the deleted documents of all shards as one JSON array
+   */
+  public String delete(String filter) {
+    return mergeJson(fanOut(shard -> shard.delete(filter)));
+  }
+
+  public String updateById(String id, UpdateOptionsHandler option) {
+    if (id == null) throw new NullPointerException();
+    return shard(id).updateById(id, option);
+  }
+
+  /**
+   * @return the first updated document of the shards, like {@link Collection#update(String, UpdateOptionsHandler)}.
+   * null when no document matched
+   */
+  public String update(String filter, UpdateOptionsHandler option) {
+    List<String> updated = fanOut(shard -> shard.update(filter, option));
+    return updated.isEmpty() ? null : updated.get(0);
+  }
+
+  public String updateFieldById(String id, String field, Object value) {
+    if (id == null) throw new NullPointerException();
+    return shard(id).updateFieldById(id, field, value);
+  }
+
+  public void watch(WatchHandler watcher) {
+    for (Collection shard : shards) shard.watch(watcher);
+  }
+
+  public void watch(String event, WatchHandler watcher) {
+    for (Collection shard : shards) shard.watch(event, watcher);
+  }
+
+  public void close() {
+    executor.shutdown();
+    for (Database database : databases) database.close();
+  }
+
+  /**
+   * Sets a missing id on the document, so the shard is chosen by the id the document is saved with.
+   * Numeric ids come from one sequence over all shards, the sequence of each shard would repeat them.
+   *
+   * @return the id of the document
+   */
+  private String assignId(Object document) {
+    Object id = idOf(document);
+    if (Utils.isUnsetId(id)) {
+      id = numericId ? Utils.toIdType(idField.getType(), nextId()) : idGenerator.generate();
+      if (document instanceof Map) {
+        ((Map<String, Object>) document).put(idField.getName(), id);
+      } else try {
+        idField.set(document, id);
+      } catch (IllegalAccessException e) {
+        throw new IllegalStateException(e);
+      }
+    } else if (numericId) {
+      useId(Long.parseLong(String.valueOf(id)));
+    }
+    return String.valueOf(id);
+  }
+
+  private Object idOf(Object document) {
+    if (document instanceof Map) return ((Map<String, Object>) document).get(idField.getName());
+    try {
+      return idField.get(document);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private Object toDocument(Object document) {
+    return document instanceof Map ? mapper.convertValue(document, klass) : document;
+  }
+
+  private synchronized long nextId() {
+    loadLastId();
+    return ++lastId;
+  }
+
+  private synchronized void useId(long id) {
+    loadLastId();
+    if (id > lastId) lastId = id;
+  }
+
+  private void loadLastId() {
+    if (lastId >= 0) return;
+    lastId = 0;
+    for (Collection shard : shards) lastId = Math.max(lastId, shard.lastId());
+  }
+
+  private <R> List<R> fanOut(Function<Collection, R> query) {
+    List<Future<R>> futures = new ArrayList<>();
+    for (Collection shard : shards) {
+      futures.add(executor.submit(() -> query.apply(shard)));
+    }
+
+    List<R> results = new ArrayList<>();
+    for (Future<R> future : futures) {
+      R result = await(future);
+      if (result != null) results.add(result);
+    }
+    return results;
+  }
+
+  // the documents of each shard in one array, without the nulls of shards that had none
+  private String mergeJson(List<String> results) {
+    StringJoiner json = new StringJoiner(",", "[", "]");
+    for (String result : results) {
+      try {
+        for (JsonNode node : mapper.readTree(result)) {
+          if (!node.isNull()) json.add(node.toString());
+        }
+      } catch (JsonProcessingException e) {
+        e.printStackTrace();
+      }
+    }
+    return json.toString();
+  }
+
+  private static <R> R await(Future<R> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException | ExecutionException e) {
+      e.printStackTrace();
+      return null;
+    }
+  }
+}
@@ -0,0 +1,146 @@
+package nosqlite;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Sort field and direction parsed from 'field<', 'field>' or 'field=asc',
+ * optionally followed by 'nulls first' or 'nulls last'.
+ * Several keys are separated by commas, 'age>, name<'.
+ *
+ * @author Johan Wirén
+ */
+class SortKey {
+  private static final Pattern NULLS = Pattern.compile("(?i)\\s+nulls\\s+(first|last)$");
+
+  final String path;
+  final boolean descending;
+  final boolean nullsFirst;
+
+  private SortKey(String path, boolean descending, Boolean nullsFirst) {
+    Collection.validateField(path);
+    this.path = "$." + path;
+    this.descending = descending;
+    // SQLite puts NULL first when ascending and last when descending
+    this.nullsFirst = nullsFirst == null ? !descending : nullsFirst;
+  }
+
+  static List<SortKey> parseAll(String sort) {
+    if (sort == null || sort.trim().isEmpty()) return Collections.emptyList();
+    List<SortKey> keys = new ArrayList<>();
+    for (String key : sort.split(",")) keys.add(parse(key));
+    return keys;
+  }
+
+  static SortKey parse(String sort) {
+    if (sort == null) return null;
+    sort = sort.trim();
+
+    Boolean nullsFirst = null;
+    Matcher nulls = NULLS.matcher(sort);
+    if (nulls.find()) {
+      nullsFirst = nulls.group(1).equalsIgnoreCase("first");
+      sort = sort.substring(0, nulls.start()).trim();
+    }
+
+    if (sort.endsWith("<")) {
+      return new SortKey(sort.substring(0, sort.length() - 1).trim(), false, nullsFirst);
+    } else if (sort.endsWith(">")) {
+      return new SortKey(sort.substring(0, sort.length() - 1).trim(), true, nullsFirst);
+    }
+    String[] order = sort.split("==|=");
+    boolean descending = order.length > 1 && order[1].trim().equalsIgnoreCase("desc");
+    return new SortKey(order[0].trim(), descending, nullsFirst);
+  }
+
+  String direction() {
+    return descending ? "DESC" : "ASC";
+  }
+
+  /**
+   * The path is written into the query, so it matches an index on the same expression.
+   * NULLS FIRST or LAST is only added when it isn't the default, the index can't be used for it.
+   */
+  String orderBy(String value) {
+    String nulls = nullsFirst == !descending ? "" : (nullsFirst ? " NULLS FIRST" : " NULLS LAST");
+    return String.format("json_extract(%s, '%s') %s%s", value, path, direction(), nulls);
+  }
+
+  static String orderBy(List<SortKey> keys, String value, String rowId) {
+    StringBuilder orderBy = new StringBuilder(" ORDER BY ");
+    for (SortKey key : keys) orderBy.append(key.orderBy(value)).append(", ");
+    // ties are ordered by the row, so pages with an offset don't overlap
+    return orderBy.append(rowId).toString();
+  }
+
+  /**
+   * Compares documents the same way SQLite orders json_extract() values,
+   * NULL before numbers before text
+   */
+  Comparator<JsonNode> comparator() {
+    Comparator<JsonNode> comparator = (a, b) -> compareValues(extract(a), extract(b));
+    if (descending) comparator = comparator.reversed();
+    return nullsFirst == !descending ? comparator : (a, b) -> {
+      boolean nullA = typeOrder(extract(a)) == 0, nullB = typeOrder(extract(b)) == 0;
+      if (nullA != nullB) return nullA == nullsFirst ? -1 : 1;
+      return compareValues(extract(a), extract(b)) * (descending ? -1 : 1);
+    };
+  }
+
+  static Comparator<JsonNode> comparator(List<SortKey> keys) {
+    Comparator<JsonNode> comparator = (a, b) -> 0;
+    for (SortKey key : keys) comparator = comparator.thenComparing(key.comparator());
+    return comparator;
+  }
+
+  JsonNode extract(JsonNode doc) {
+    JsonNode node = doc;
+    // '$.cats[0].race.type' -> cats, [0], race, type
+    for (String part : path.substring(2).split("\\.|(?=\\[)")) {
+      if (node == null) return null;
+      if (part.startsWith("[")) {
+        node = node.get(Integer.parseInt(part.substring(1, part.length() - 1)));
+      } else {
+        node = node.get(part);
+      }
+    }
+    return node;
+  }
+
+  private static int compareValues(JsonNode a, JsonNode b) {
+    int typeA = typeOrder(a);
+    int typeB = typeOrder(b);
+    if (typeA != typeB) return Integer.compare(typeA, typeB);
+
+    switch (typeA) {
+      case 0:
+        return 0;
+      case 1:
+        return Double.compare(numeric(a), numeric(b));
+      default:
+        return text(a).compareTo(text(b));
+    }
+  }
+
+  private static int typeOrder(JsonNode node) {
+    if (node == null || node.isNull() || node.isMissingNode()) return 0;
+    if (node.isNumber() || node.isBoolean()) return 1;
+    return 2;
+  }
+
+  private static double numeric(JsonNode node) {
+    // json_extract() returns booleans as 1 and 0
+    if (node.isBoolean()) return node.booleanValue() ? 1 : 0;
+    return node.doubleValue();
+  }
+
+  private static String text(JsonNode node) {
+    return node.isTextual() ? node.textValue() : node.toString();
+  }
+}
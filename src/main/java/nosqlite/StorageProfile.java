@@ -0,0 +1,110 @@
+package nosqlite;
+
+import nosqlite.handlers.CollectionConfig;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pragmas for a connection, from a named profile and the explicit options in CollectionConfig.
+ * Explicit options override the profile, options that are not set keep the SQLite defaults.
+ *
+ * @author Johan Wirén
+ */
+class StorageProfile {
+  private static final String JOURNAL_MODES = "DELETE|TRUNCATE|PERSIST|MEMORY|WAL|OFF";
+  private static final String SYNCHRONOUS = "OFF|NORMAL|FULL|EXTRA";
+  private static final String TEMP_STORES = "DEFAULT|FILE|MEMORY";
+
+  // page_size must come before journal_mode, a WAL database can't change page size
+  private final Map<String, Object> pragmas = new LinkedHashMap<>();
+
+  private StorageProfile() {
+    pragmas.put("page_size", null);
+    pragmas.put("journal_mode", null);
+    pragmas.put("synchronous", null);
+    pragmas.put("cache_size", null);
+    pragmas.put("mmap_size", null);
+    pragmas.put("temp_store", null);
+    pragmas.put("wal_autocheckpoint", null);
+  }
+
+  static StorageProfile of(CollectionConfig config) {
+    StorageProfile storage = new StorageProfile();
+    if (config.profile != null) storage.profile(config.profile);
+
+    storage.set("page_size", config.pageSize);
+    storage.set("journal_mode", option(config.journalMode, JOURNAL_MODES, "journalMode"));
+    storage.set("synchronous", option(config.synchronous, SYNCHRONOUS, "synchronous"));
+    storage.set("cache_size", config.cacheSize);
+    storage.set("mmap_size", config.mmapSize);
+    storage.set("temp_store", option(config.tempStore, TEMP_STORES, "tempStore"));
+    storage.set("wal_autocheckpoint", config.walAutocheckpoint);
+    return storage;
+  }
+
+  /**
+   * Benchmarks behind the profiles are in the README under Storage profiles
+   */
+  private void profile(String profile) {
+    switch (profile.toLowerCase()) {
+      case "throughput":
+        // batches of commits share a sync, checkpoints are rare
+        set("journal_mode", "WAL");
+        set("synchronous", "NORMAL");
+        set("cache_size", -65536);
+        set("mmap_size", 268435456L);
+        set("temp_store", "MEMORY");
+        set("wal_autocheckpoint", 10000);
+        break;
+      case "low-latency":
+        // no sync on commit, and short checkpoints so no single write stalls for long
+        set("journal_mode", "WAL");
+        set("synchronous", "NORMAL");
+        set("cache_size", -32768);
+        set("mmap_size", 268435456L);
+        set("temp_store", "MEMORY");
+        set("wal_autocheckpoint", 500);
+        break;
+      case "low-memory":
+        set("journal_mode", "WAL");
+        set("synchronous", "NORMAL");
+        set("cache_size", -512);
+        set("mmap_size", 0L);
+        set("temp_store", "FILE");
+        set("wal_autocheckpoint", 1000);
+        break;
+      case "durable":
+        // every commit is synced before it returns
+        set("journal_mode", "WAL");
+        set("synchronous", "FULL");
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown storage profile: " + profile);
+    }
+  }
+
+  private void set(String pragma, Object value) {
+    if (value != null) pragmas.put(pragma, value);
+  }
+
+  private static String option(String value, String allowed, String name) {
+    if (value == null) return null;
+    if (!value.toUpperCase().matches(allowed)) {
+      throw new IllegalArgumentException(String.format("Invalid %s '%s', must be one of %s", name, value, allowed));
+    }
+    return value.toUpperCase();
+  }
+
+  void apply(Connection conn) throws SQLException {
+    try (Statement stmt = conn.createStatement()) {
+      for (Map.Entry<String, Object> pragma : pragmas.entrySet()) {
+        if (pragma.getValue() == null) continue;
+        stmt.execute("PRAGMA " + pragma.getKey() + " = " + pragma.getValue());
+      }
+    }
+  }
+}
@@ -0,0 +1,103 @@
+package nosqlite;
+
+import nosqlite.annotations.TableLayout;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Creates collection tables in a layout, and copies existing tables to another layout.
+ * The copy is made in one transaction, indexes on the collection are created again
+ * on the new table.
+ *
+ * @author Johan Wirén
+ */
+class TableMigration {
+
+  static String createTable(String collName, TableLayout layout) {
+    switch (layout) {
+      case WITHOUT_ROWID:
+        return "CREATE TABLE IF NOT EXISTS " + collName + "(key TEXT PRIMARY KEY NOT NULL, value JSON NOT NULL) WITHOUT ROWID";
+      case INTEGER:
+        return "CREATE TABLE IF NOT EXISTS " + collName + "(key INTEGER PRIMARY KEY NOT NULL, value JSON NOT NULL)";
+      default:
+        return "CREATE TABLE IF NOT EXISTS " + collName + "(key TEXT PRIMARY KEY NOT NULL, value JSON NOT NULL)";
+    }
+  }
+
+  /**
+   * @return layout of the existing table, or null if there is no table
+   */
+  static TableLayout layoutOf(DbHelper db, String collName) {
+    String sql = db.get("SELECT sql FROM sqlite_master WHERE type = 'table' AND name = ?", new Object[] { collName });
+    if (sql == null) return null;
+    sql = sql.toUpperCase();
+    if (sql.contains("WITHOUT ROWID")) return TableLayout.WITHOUT_ROWID;
+    if (sql.contains("KEY INTEGER PRIMARY KEY")) return TableLayout.INTEGER;
+    return TableLayout.ROWID;
+  }
+
+  static void requireRowid(TableLayout layout, String collName, String index) {
+    if (layout == TableLayout.WITHOUT_ROWID) {
+      throw new IllegalStateException(String.format("A %s requires a rowid, '%s' is a WITHOUT ROWID table", index, collName));
+    }
+  }
+
+  static void validate(DbHelper db, String collName, TableLayout layout) {
+    if (db.indexes.get(collName, TextIndex.TYPE) != null) requireRowid(layout, collName, "text index");
+    if (db.indexes.get(collName, GeoIndex.TYPE) != null) requireRowid(layout, collName, "geo index");
+    if (InsertSequence.isEnabled(db.indexes, collName)) requireRowid(layout, collName, "tailable cursor");
+    // copying in key order would lose the insertion order
+    if (CappedLimit.isCapped(db.indexes, collName) && layout != TableLayout.ROWID) {
+      throw new IllegalStateException(String.format("'%s' is capped and must keep the ROWID layout", collName));
+    }
+    if (layout == TableLayout.INTEGER) {
+      String keys = db.get("SELECT COUNT(*) FROM " + collName + " WHERE CAST(CAST(key AS INTEGER) AS TEXT) != key");
+      if (!"0".equals(keys)) {
+        throw new IllegalArgumentException(String.format("'%s' has %s keys that aren't integers", collName, keys));
+      }
+    }
+  }
+
+  // must be called on the writer thread, in a transaction
+  static void migrate(DbHelper db, String collName, TableLayout layout) throws SQLException {
+    if (layoutOf(db, collName) == layout) return;
+
+    // field indexes are dropped with the table, the autoindex on key has no sql
+    List<String> indexes = new ArrayList<>();
+    try (PreparedStatement stmt = db.conn.prepareStatement(
+        "SELECT sql FROM sqlite_master WHERE type = 'index' AND tbl_name = ? AND sql IS NOT NULL")) {
+      stmt.setString(1, collName);
+      ResultSet rs = stmt.executeQuery();
+      while (rs.next()) indexes.add(rs.getString(1));
+    }
+
+    InsertSequence.keepKeys(db, collName);
+    String copy = "_nosqlite_migrate_" + collName;
+    try (Statement stmt = db.conn.createStatement()) {
+      stmt.executeUpdate("DROP TABLE IF EXISTS " + copy);
+      stmt.executeUpdate(createTable(copy, layout));
+      // in key order, so the new table is filled by appending
+      stmt.executeUpdate(String.format("INSERT INTO %s(key, value) SELECT key, value FROM %s ORDER BY key", copy, collName));
+      stmt.executeUpdate("DROP TABLE " + collName);
+      stmt.executeUpdate(String.format("ALTER TABLE %s RENAME TO %s", copy, collName));
+      for (String index : indexes) stmt.executeUpdate(index);
+    }
+
+    // rowids have changed and the triggers were dropped with the table
+    String[] textFields = db.indexes.get(collName, TextIndex.TYPE);
+    if (textFields != null) TextIndex.create(db, collName, textFields);
+    String[] geoFields = db.indexes.get(collName, GeoIndex.TYPE);
+    if (geoFields != null) GeoIndex.create(db, collName, geoFields[0], geoFields[1]);
+    String[] multikeyFields = db.indexes.get(collName, MultikeyIndex.TYPE);
+    if (multikeyFields != null) {
+      for (String field : multikeyFields) MultikeyIndex.create(db, collName, field);
+    }
+    ExpiryIndex.createTriggers(db, collName);
+    InsertSequence.restoreKeys(db, collName);
+  }
+}
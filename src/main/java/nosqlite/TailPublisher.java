@@ -0,0 +1,109 @@
+package nosqlite;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+import nosqlite.handlers.WatchHandler;
+import nosqlite.utilities.Utils;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tailable cursor, publishes the documents in insertion order and then each document as it's inserted.
+ * It never completes, the subscriber cancels when it's done. The position is the insert sequence number
+ * of the last document read, documents evicted from a capped collection before they're read are skipped.
+ *
+ * @author Johan Wirén
+ */
+class TailPublisher<T> implements Publisher<T> {
+  private final DbHelper db;
+  private final String collName;
+  private final String filter;
+  private final ObjectReader reader;
+
+  TailPublisher(DbHelper db, String collName, String filter, ObjectReader reader) {
+    this.db = db;
+    this.collName = collName;
+    this.filter = filter;
+    this.reader = reader;
+  }
+
+  @Override
+  public void subscribe(Subscriber<? super T> subscriber) {
+    if (subscriber == null) throw new NullPointerException();
+    TailSubscription subscription = new TailSubscription(subscriber);
+    subscriber.onSubscribe(subscription);
+    // reads again when documents are inserted
+    db.watch(collName, "insert", subscription.watcher);
+    // cancelled in onSubscribe, before there was a watcher to remove
+    if (subscription.isCancelled()) db.unwatch(collName, subscription.watcher);
+  }
+
+  private class TailSubscription extends DemandSubscription<T> {
+    private final ArrayDeque<T> page = new ArrayDeque<>(QueryPublisher.PAGE_SIZE);
+    private long lastSeq = 0;
+    // there may be more rows than the last read returned
+    private volatile boolean inserted = true;
+
+    final WatchHandler watcher = watchData -> {
+      inserted = true;
+      drain();
+    };
+
+    TailSubscription(Subscriber<? super T> subscriber) {
+      super(subscriber);
+    }
+
+    @Override
+    T next() throws Exception {
+      if (page.isEmpty() && inserted) fetch();
+      return page.poll();
+    }
+
+    @Override
+    boolean isDone() {
+      return false;
+    }
+
+    @Override
+    Throwable error() {
+      return null;
+    }
+
+    @Override
+    void onCancel() {
+      db.unwatch(collName, watcher);
+      page.clear();
+    }
+
+    private void fetch() throws Exception {
+      // cleared before reading, an insert during the read is read the next time
+      inserted = false;
+      List<Object> params = new ArrayList<>();
+      String query = InsertSequence.after(collName, db.select(collName, filter, null, 0, 0, params, "rowid AS _row, value"),
+          lastSeq, QueryPublisher.PAGE_SIZE);
+
+      List<Object[]> rows = db.read(() -> {
+        List<Object[]> result = new ArrayList<>(QueryPublisher.PAGE_SIZE);
+        try (PreparedStatement stmt = db.conn.prepareStatement(query)) {
+          for (int i = 0; i < params.size(); i++) {
+            Utils.setParams(i + 1, params.get(i), stmt);
+          }
+          ResultSet rs = stmt.executeQuery();
+          while (rs.next()) result.add(new Object[] { rs.getLong(1), rs.getBytes(2) });
+        }
+        return result;
+      });
+
+      for (Object[] row : rows) {
+        lastSeq = (Long) row[0];
+        page.add(reader.readValue((byte[]) row[1]));
+      }
+      if (rows.size() == QueryPublisher.PAGE_SIZE) inserted = true;
+    }
+  }
+}
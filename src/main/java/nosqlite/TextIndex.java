@@ -0,0 +1,73 @@
+package nosqlite;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.StringJoiner;
+
+/**
+ * FTS5 index over text fields of a collection.
+ * The index is contentless and kept in sync by triggers,
+ * so every write updates it in the same transaction.
+ *
+ * @author Johan Wirén
+ */
+class TextIndex {
+  static final String TYPE = "text";
+
+  static String table(String collName) {
+    return "_nosqlite_fts_" + collName;
+  }
+
+  // 'cats[0].name' -> 'cats_0__name'
+  static String column(String field) {
+    return field.replaceAll("\\W", "_");
+  }
+
+  // must be called on the writer thread
+  static void create(DbHelper db, String collName, String[] fields) throws SQLException {
+    drop(db, collName);
+    String table = table(collName);
+
+    StringJoiner columns = new StringJoiner(", ");
+    for (String field : fields) {
+      columns.add('"' + column(field) + '"');
+    }
+
+    try (Statement stmt = db.conn.createStatement()) {
+      stmt.executeUpdate(String.format("CREATE VIRTUAL TABLE %s USING fts5(%s, content='')", table, columns));
+      stmt.executeUpdate(String.format("INSERT INTO %1$s(rowid, %2$s) SELECT rowid, %3$s FROM %4$s",
+          table, columns, values(fields, "value"), collName));
+
+      // contentless tables must be given the old values to delete a row
+      stmt.executeUpdate(String.format("CREATE TRIGGER %1$s_insert AFTER INSERT ON %2$s BEGIN " +
+          "INSERT INTO %1$s(rowid, %3$s) VALUES(new.rowid, %4$s); END", table, collName, columns, values(fields, "new.value")));
+      stmt.executeUpdate(String.format("CREATE TRIGGER %1$s_delete AFTER DELETE ON %2$s BEGIN " +
+          "INSERT INTO %1$s(%1$s, rowid, %3$s) VALUES('delete', old.rowid, %4$s); END", table, collName, columns, values(fields, "old.value")));
+      stmt.executeUpdate(String.format("CREATE TRIGGER %1$s_update AFTER UPDATE OF value ON %2$s BEGIN " +
+              "INSERT INTO %1$s(%1$s, rowid, %3$s) VALUES('delete', old.rowid, %4$s); " +
+              "INSERT INTO %1$s(rowid, %3$s) VALUES(new.rowid, %5$s); END",
+          table, collName, columns, values(fields, "old.value"), values(fields, "new.value")));
+    }
+    db.indexes.put(collName, TYPE, fields);
+  }
+
+  // must be called on the writer thread
+  static void drop(DbHelper db, String collName) throws SQLException {
+    String table = table(collName);
+    try (Statement stmt = db.conn.createStatement()) {
+      stmt.executeUpdate("DROP TRIGGER IF EXISTS " + table + "_insert");
+      stmt.executeUpdate("DROP TRIGGER IF EXISTS " + table + "_delete");
+      stmt.executeUpdate("DROP TRIGGER IF EXISTS " + table + "_update");
+      stmt.executeUpdate("DROP TABLE IF EXISTS " + table);
+    }
+    db.indexes.remove(collName, TYPE);
+  }
+
+  private static String values(String[] fields, String column) {
+    StringJoiner values = new StringJoiner(", ");
+    for (String field : fields) {
+      values.add("json_extract(" + column + ", '$." + field + "')");
+    }
+    return values.toString();
+  }
+}
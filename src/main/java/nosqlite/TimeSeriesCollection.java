@@ -0,0 +1,539 @@
+package nosqlite;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import nosqlite.annotations.Id;
+import nosqlite.handlers.*;
+import nosqlite.utilities.IdGenerator;
+import nosqlite.utilities.Utils;
+
+import java.lang.reflect.Field;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Collection partitioned into one table for each time bucket, by a timestamp field
+ * in epoch milliseconds or a Date. Filters with bounds on the timestamp only query
+ * the partitions in range, and retention drops whole partitions instead of deleting documents.
+ *
+ * <pre>
+ * TimeSeriesCollection metrics = new TimeSeriesCollection(Metric.class, "time", 1, TimeUnit.DAYS);
+ * // creates Metric_ts_1760832000000, Metric_ts_1760918400000 and so on
+ * </pre>
+ *
+ * @author Johan Wirén
+ */
+@SuppressWarnings("unchecked")
+public class TimeSeriesCollection {
+  static final String TYPE = "timeseries";
+  // time bounds of a filter, 'time>=1000' or 'time < 2000'
+  private static final Pattern BOUND = Pattern.compile("^\\s*([\\w\\.]+)\\s*(>=|<=|==|=|>|<)\\s*(-?[\\d\\.]+)\\s*$");
+  // a ! that isn't part of !=
+  private static final Pattern NEGATION = Pattern.compile("!(?!=)");
+
+  private final Database database;
+  private final DbHelper db;
+  private final Class klass;
+  private final String collName;
+  private final String timeField;
+  private final Field timeAccessor;
+  private final Field idField;
+  private final boolean numericId;
+  private final IdGenerator idGenerator;
+  // largest numeric id of all partitions, -1 until it's read
+  private long lastId = -1;
+  private final long bucketMillis;
+  // bucket start -> partition
+  private final ConcurrentSkipListMap<Long, Collection> partitions = new ConcurrentSkipListMap<>();
+  // watchers and indexes, applied to partitions created later
+  private final List<Consumer<Collection>> partitionSetup = new CopyOnWriteArrayList<>();
+  private volatile long retentionMillis = 0;
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  public TimeSeriesCollection(Class klass, String timeField, long bucketSize, TimeUnit unit) {
+    this(Database.getDefault(), klass, timeField, bucketSize, unit);
+  }
+
+  public TimeSeriesCollection(Database database, Class klass, String timeField, long bucketSize, TimeUnit unit) {
+    if (database == null || klass == null || unit == null) throw new NullPointerException();
+    Collection.validateField(timeField);
+    if (bucketSize < 1) throw new IllegalArgumentException("bucketSize must be at least 1");
+    this.database = database;
+    this.db = database.dbHelper();
+    this.klass = klass;
+    this.collName = Database.collectionName(klass);
+    this.timeField = timeField;
+    this.bucketMillis = unit.toMillis(bucketSize);
+    if (bucketMillis < 1) throw new IllegalArgumentException("bucketSize must be at least 1 millisecond");
+
+    try {
+      timeAccessor = klass.getDeclaredField(timeField);
+    } catch (NoSuchFieldException e) {
+      throw new IllegalArgumentException("No field '" + timeField + "' in " + collName);
+    }
+    Class<?> type = timeAccessor.getType();
+    if (type != long.class && type != Long.class && !Date.class.isAssignableFrom(type)) {
+      throw new IllegalArgumentException("The time field must be a long or a Date in " + collName);
+    }
+    timeAccessor.setAccessible(true);
+    this.idField = Arrays.stream(klass.getDeclaredFields()).filter(field -> field.isAnnotationPresent(Id.class)).findFirst()
+        .orElseThrow(() -> new IllegalArgumentException(klass.getSimpleName() + " has no @Id field"));
+    idField.setAccessible(true);
+    this.numericId = Utils.isNumericId(idField.getType());
+    this.idGenerator = Utils.idGenerator(klass);
+
+    // ignore failure on field name mismatch
+    mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    // the buckets of existing partitions can't be changed
+    String[] registered = db.indexes.get(collName, TYPE);
+    if (registered == null) {
+      db.run("create", () -> {
+        db.indexes.put(collName, TYPE, new String[] { timeField, String.valueOf(bucketMillis) });
+        return "created";
+      });
+    } else if (!registered[0].equals(timeField) || Long.parseLong(registered[1]) != bucketMillis) {
+      throw new IllegalArgumentException(String.format("'%s' is partitioned by %s in buckets of %s ms",
+          collName, registered[0], registered[1]));
+    }
+    loadPartitions();
+  }
+
+  private void loadPartitions() {
+    String prefix = collName + "_ts_";
+    try {
+      List<Long> buckets = db.read(() -> {
+        List<Long> result = new ArrayList<>();
+        try (PreparedStatement stmt = db.conn.prepareStatement(
+            "SELECT name FROM sqlite_master WHERE type='table' AND name GLOB ?")) {
+          stmt.setString(1, prefix + "[0-9]*");
+          ResultSet rs = stmt.executeQuery();
+          while (rs.next()) result.add(Long.parseLong(rs.getString(1).substring(prefix.length())));
+        }
+        return result;
+      });
+      for (long bucket : buckets) partitions.put(bucket, database.getCollection(klass, prefix + bucket));
+    } catch (SQLException e) {
+      e.printStackTrace();
+    }
+  }
+
+  public String timeField() {
+    return timeField;
+  }
+
+  /**
+   * @return start of each partition in epoch milliseconds, oldest first
+   */
+  public List<Long> partitions() {
+    return new ArrayList<>(partitions.keySet());
+  }
+
+  // the partition of the bucket, created with the indexes and watchers of the others
+  Collection partition(long bucket) {
+    Collection partition = partitions.get(bucket);
+    if (partition != null) return partition;
+
+    synchronized (this) {
+      partition = partitions.get(bucket);
+      if (partition != null) return partition;
+
+      partition = database.getCollection(klass, collName + "_ts_" + bucket);
+      partition.createIndex(timeField);
+      for (Consumer<Collection> setup : partitionSetup) setup.accept(partition);
+      partitions.put(bucket, partition);
+    }
+    if (retentionMillis > 0) dropBefore(System.currentTimeMillis() - retentionMillis, bucket);
+    return partition;
+  }
+
+  private long bucketOf(Object document) {
+    Object time;
+    try {
+      time = timeAccessor.get(document);
+    } catch (IllegalAccessException e) {
+      throw new IllegalArgumentException(e);
+    }
+    if (time == null) throw new IllegalArgumentException("'" + timeField + "' must be set to save in " + collName);
+    long millis = time instanceof Date ? ((Date) time).getTime() : (Long) time;
+    if (millis < 0) throw new IllegalArgumentException("'" + timeField + "' can't be before 1970 in " + collName);
+    return millis - millis % bucketMillis;
+  }
+
+  /**
+   * A document that was saved before in another bucket is moved to the partition of its new time
+   */
+  public <T> T save(Object document) {
+    if (document == null) throw new NullPointerException();
+    Collection partition = partition(bucketOf(document));
+    String id = assignId(document);
+    Collection previous = id == null ? null : partitionOf(id, partition);
+    if (previous == null) return partition.save(document);
+
+    db.runTransaction(() -> {
+      partition.save(document);
+      previous.deleteById(id);
+    });
+    return (T) document;
+  }
+
+  public <T> List<T> save(List<T> documents) {
+    return Arrays.asList(save(documents.toArray()));
+  }
+
+  public <T> T[] save(Object[] documents) {
+    return saveMany(documents);
+  }
+
+  /**
+   * Saves the documents of each bucket as one batch. Documents that were saved before
+   * in another bucket are moved in the same transaction.
+   */
+  public <T> T[] saveMany(Object[] documents) {
+    if (documents == null) throw new NullPointerException();
+    Map<Long, List<Object>> byBucket = new TreeMap<>();
+    Map<String, Collection> moved = new LinkedHashMap<>();
+
+    for (Object doc : documents) {
+      if (doc == null) throw new NullPointerException();
+      long bucket = bucketOf(doc);
+      String id = assignId(doc);
+      Collection previous = id == null ? null : partitionOf(id, partition(bucket));
+      if (previous != null) moved.put(id, previous);
+      byBucket.computeIfAbsent(bucket, b -> new ArrayList<>()).add(doc);
+    }
+
+    Runnable save = () -> {
+      byBucket.forEach((bucket, docs) -> partition(bucket).saveMany(docs.toArray()));
+      moved.forEach((id, previous) -> previous.deleteById(id));
+    };
+    if (moved.isEmpty()) save.run();
+    else db.runTransaction(save);
+    return (T[]) documents;
+  }
+
+  /**
+   * Looks in every partition, newest first, since the id doesn't tell the bucket
+   */
+  public <T> T findById(String id) {
+    if (id == null) throw new NullPointerException();
+    for (Collection partition : partitions.descendingMap().values()) {
+      T doc = partition.findById(id);
+      if (doc != null) return doc;
+    }
+    return null;
+  }
+
+  public String findByIdAsJson(String id) {
+    if (id == null) throw new NullPointerException();
+    for (Collection partition : partitions.descendingMap().values()) {
+      String json = partition.findByIdAsJson(id);
+      if (json != null) return json;
+    }
+    return null;
+  }
+
+  // the partition other than skip that holds the id
+  private Collection partitionOf(String id, Collection skip) {
+    for (Collection partition : partitions.descendingMap().values()) {
+      if (partition != skip && partition.findByIdAsJson(id) != null) return partition;
+    }
+    return null;
+  }
+
+  /**
+   * Sets a missing id on the document. Numeric ids come from one sequence over all partitions,
+   * the sequence of each partition would repeat them.
+   *
+   * @return the id the document already had, null if it was new
+   */
+  private String assignId(Object document) {
+    Object id;
+    try {
+      id = idField.get(document);
+      if (!Utils.isUnsetId(id)) {
+        if (numericId) useId(Long.parseLong(String.valueOf(id)));
+        return String.valueOf(id);
+      }
+      idField.set(document, numericId ? Utils.toIdType(idField.getType(), nextId()) : idGenerator.generate());
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    }
+    return null;
+  }
+
+  private synchronized long nextId() {
+    loadLastId();
+    return ++lastId;
+  }
+
+  private synchronized void useId(long id) {
+    loadLastId();
+    if (id > lastId) lastId = id;
+  }
+
+  private void loadLastId() {
+    if (lastId >= 0) return;
+    lastId = 0;
+    for (Collection partition : partitions.values()) lastId = Math.max(lastId, partition.lastId());
+  }
+
+  public <T> List<T> find() {
+    return find(null, null, 0, 0);
+  }
+
+  public <T> List<T> find(String filter) {
+    return find(filter, null, 0, 0);
+  }
+
+  public <T> List<T> find(String filter, int limit) {
+    return find(filter, null, limit, 0);
+  }
+
+  public <T> List<T> find(FindOptionsHandler option) {
+    FindOptions op = new FindOptions();
+    option.handle(op);
+    return find(op.filter, op.sort, op.limit, op.offset);
+  }
+
+  public <T> List<T> find(String filter, String sort, int limit, int offset) {
+    // documents in time order are read as they are, without the round trip through JsonNode
+    if (inTimeOrder(SortKey.parseAll(sort))) {
+      return collect(filter, sort, limit, offset, (partition, partitionLimit) -> partition.find(filter, sort, partitionLimit, 0), null);
+    }
+    List<T> docs = new ArrayList<>();
+    for (JsonNode node : findNodes(filter, sort, limit, offset)) {
+      try {
+        docs.add((T) mapper.treeToValue(node, klass));
+      } catch (JsonProcessingException e) {
+        e.printStackTrace();
+      }
+    }
+    return docs;
+  }
+
+  public <T> T findOne(String filter) {
+    List docs = find(filter, 1);
+    return docs.size() > 0 ? (T) docs.get(0) : null;
+  }
+
+  public String findAsJson(FindOptionsHandler option) {
+    FindOptions op = new FindOptions();
+    option.handle(op);
+    return findAsJson(op.filter, op.sort, op.limit, op.offset);
+  }
+
+  public String findAsJson(String filter) {
+    return findAsJson(filter, null, 0, 0);
+  }
+
+  public String findAsJson(String filter, String sort, int limit, int offset) {
+    StringJoiner json = new StringJoiner(",", "[", "]");
+    for (JsonNode node : findNodes(filter, sort, limit, offset)) {
+      json.add(node.toString());
+    }
+    return json.toString();
+  }
+
+  private List<JsonNode> findNodes(String filter, String sort, int limit, int offset) {
+    List<SortKey> sortKeys = SortKey.parseAll(sort);
+    return collect(filter, sort, limit, offset, (partition, partitionLimit) -> {
+      List<JsonNode> nodes = new ArrayList<>();
+      try {
+        mapper.readTree(partition.findAsJson(filter, sort, partitionLimit, 0)).forEach(nodes::add);
+      } catch (JsonProcessingException e) {
+        e.printStackTrace();
+      }
+      return nodes;
+    }, inTimeOrder(sortKeys) ? null : SortKey.comparator(sortKeys));
+  }
+
+  // without a sort the partitions are read oldest first
+  private boolean inTimeOrder(List<SortKey> sortKeys) {
+    return sortKeys.isEmpty() || sortKeys.get(0).path.equals("$." + timeField);
+  }
+
+  /**
+   * In time order the partitions are read in order until limit + offset documents are found.
+   * Other sorts merge the first limit + offset documents of each partition, like a sharded collection.
+   *
+   * @param merge comparator of the sort, null when the documents are in time order
+   */
+  private <R> List<R> collect(String filter, String sort, int limit, int offset,
+                              BiFunction<Collection, Integer, List<R>> query, Comparator<R> merge) {
+    List<SortKey> sortKeys = SortKey.parseAll(sort);
+    List<Collection> inRange = inRange(filter);
+    if (merge == null && !sortKeys.isEmpty() && sortKeys.get(0).descending) Collections.reverse(inRange);
+
+    int wanted = limit == 0 ? 0 : limit + offset;
+    List<R> docs = new ArrayList<>();
+    for (Collection partition : inRange) {
+      int partitionLimit = wanted == 0 ? 0 : merge == null ? wanted - docs.size() : wanted;
+      docs.addAll(query.apply(partition, partitionLimit));
+      if (merge == null && wanted > 0 && docs.size() >= wanted) break;
+    }
+
+    // stable sort keeps the order within each partition
+    if (merge != null) docs.sort(merge);
+
+    int from = Math.min(offset, docs.size());
+    int to = limit == 0 ? docs.size() : Math.min(from + limit, docs.size());
+    return docs.subList(from, to);
+  }
+
+  /**
+   * Partitions that can hold documents matching the bounds on the time field, oldest first.
+   * Only filters joined by && are pruned, others query every partition.
+   */
+  List<Collection> inRange(String filter) {
+    double from = Double.NEGATIVE_INFINITY, to = Double.POSITIVE_INFINITY;
+    boolean toInclusive = true;
+
+    // negations and || can match documents outside the bounds
+    if (filter != null && !filter.contains("||") && !NEGATION.matcher(filter).find()) {
+      // with only && the parentheses don't change the result
+      for (String term : filter.replaceAll("[()]", "").split("&&")) {
+        Matcher bound = BOUND.matcher(term);
+        if (!bound.matches() || !bound.group(1).equals(timeField)) continue;
+        double value;
+        try {
+          value = Double.parseDouble(bound.group(3));
+        } catch (NumberFormatException e) {
+          continue;
+        }
+        String op = bound.group(2);
+        if (op.startsWith(">") || op.startsWith("=")) from = Math.max(from, value);
+        if (op.startsWith("<") || op.startsWith("=")) {
+          if (value < to || (value == to && op.equals("<"))) {
+            to = value;
+            toInclusive = !op.equals("<");
+          }
+        }
+      }
+    }
+
+    List<Collection> inRange = new ArrayList<>();
+    for (Map.Entry<Long, Collection> partition : partitions.entrySet()) {
+      long start = partition.getKey();
+      if (start + bucketMillis <= from) continue;
+      if (toInclusive ? start > to : start >= to) break;
+      inRange.add(partition.getValue());
+    }
+    return inRange;
+  }
+
+  public int count() {
+    int count = 0;
+    for (Collection partition : partitions.values()) count += partition.count();
+    return count;
+  }
+
+  /**
+   * Deletes from the partitions newest first, a partition without the id is only read
+   */
+  public String deleteById(String id) {
+    if (id == null) throw new NullPointerException();
+    for (Collection partition : partitions.descendingMap().values()) {
+      String deleted = partition.deleteById(id);
+      if (!deleted.equals("[null]")) return deleted;
+    }
+    return null;
+  }
+
+  /**
+   * @return number of deleted documents
+   */
+  public int delete(String filter) {
+    int deleted = 0;
+    for (Collection partition : inRange(filter)) {
+      try {
+        for (JsonNode node : mapper.readTree(partition.delete(filter))) {
+          if (!node.isNull()) deleted++;
+        }
+      } catch (JsonProcessingException e) {
+        e.printStackTrace();
+      }
+    }
+    return deleted;
+  }
+
+  /**
+   * Updates that change the time field don't move documents to another partition
+   */
+  public void update(String filter, UpdateOptionsHandler option) {
+    for (Collection partition : inRange(filter)) partition.update(filter, option);
+  }
+
+  /**
+   * Creates the index in every partition, and in the partitions created later
+   */
+  public void createIndex(String field) {
+    Collection.validateField(field);
+    partitionSetup.add(partition -> partition.createIndex(field));
+    for (Collection partition : partitions.values()) partition.createIndex(field);
+  }
+
+  public void watch(WatchHandler watcher) {
+    partitionSetup.add(partition -> partition.watch(watcher));
+    for (Collection partition : partitions.values()) partition.watch(watcher);
+  }
+
+  public void watch(String event, WatchHandler watcher) {
+    partitionSetup.add(partition -> partition.watch(event, watcher));
+    for (Collection partition : partitions.values()) partition.watch(event, watcher);
+  }
+
+  /**
+   * Keeps the partitions that end within the time before now. Older partitions are dropped
+   * now and each time a new partition is created. 0 keeps every partition.
+   */
+  public void retention(long time, TimeUnit unit) {
+    if (time < 0) throw new IllegalArgumentException("retention can't be negative");
+    retentionMillis = unit.toMillis(time);
+    if (retentionMillis > 0) dropBefore(System.currentTimeMillis() - retentionMillis);
+  }
+
+  /**
+   * Drops the partitions that only hold documents before the time, in epoch milliseconds.
+   * The partition holding the time is kept.
+   *
+   * @return number of dropped partitions
+   */
+  public int dropBefore(long time) {
+    return dropBefore(time, -1);
+  }
+
+  // a partition that was just created is kept until the next one
+  private synchronized int dropBefore(long time, long keep) {
+    int dropped = 0;
+    for (Long bucket : new ArrayList<>(partitions.headMap(time - bucketMillis, true).keySet())) {
+      if (bucket == keep) continue;
+      partitions.remove(bucket);
+      database.dropCollection(collName + "_ts_" + bucket);
+      dropped++;
+    }
+    return dropped;
+  }
+
+  /**
+   * Drops every partition and forgets the bucket size
+   */
+  public void drop() {
+    dropBefore(Long.MAX_VALUE);
+    db.run("delete", () -> {
+      db.indexes.remove(collName, TYPE);
+      return "deleted";
+    });
+  }
+}
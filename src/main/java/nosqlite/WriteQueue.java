@@ -0,0 +1,178 @@
+package nosqlite;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Queue of the writer thread with an interactive and a bulk lane, each bounded by the capacity.
+ * When both lanes have tasks, the writer takes interactiveWeight interactive tasks for every bulk task,
+ * so single writes don't wait behind an import.
+ *
+ * @author Johan Wirén
+ */
+class WriteQueue<T> {
+  static final String BLOCK = "block";
+  static final String FAIL = "fail";
+  static final String CALLER_RUNS = "caller-runs";
+
+  // how a queued task relates to the task about to run
+  enum Match { MERGE, SKIP, STOP }
+
+  private final ArrayDeque<T> interactive = new ArrayDeque<>();
+  private final ArrayDeque<T> bulk = new ArrayDeque<>();
+  private final int capacity;
+  private final String overflowPolicy;
+  private final int interactiveWeight;
+  private int interactiveInRow = 0;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+
+  WriteQueue(int capacity, String overflowPolicy, int interactiveWeight) {
+    if (capacity < 1) throw new IllegalArgumentException("queueCapacity must be at least 1");
+    if (interactiveWeight < 1) throw new IllegalArgumentException("interactiveWeight must be at least 1");
+    if (!overflowPolicy.equals(BLOCK) && !overflowPolicy.equals(FAIL) && !overflowPolicy.equals(CALLER_RUNS)) {
+      throw new IllegalArgumentException("Unknown overflowPolicy: " + overflowPolicy);
+    }
+    this.capacity = capacity;
+    this.overflowPolicy = overflowPolicy;
+    this.interactiveWeight = interactiveWeight;
+  }
+
+  /**
+   * Adds the task to its lane. When the lane is full the caller waits with "block",
+   * gets a RejectedExecutionException with "fail", and runs the task itself with "caller-runs".
+   *
+   * @return false if the caller should run the task
+   */
+  boolean put(T task, boolean isBulk) throws InterruptedException {
+    ArrayDeque<T> lane = isBulk ? bulk : interactive;
+    lock.lock();
+    try {
+      while (lane.size() >= capacity) {
+        if (overflowPolicy.equals(FAIL)) {
+          throw new RejectedExecutionException(String.format("The %s write queue is full, %d tasks waiting",
+              isBulk ? "bulk" : "interactive", capacity));
+        }
+        if (overflowPolicy.equals(CALLER_RUNS)) return false;
+        notFull.await();
+      }
+      lane.add(task);
+      notEmpty.signal();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // ignores the capacity, for waking up the writer on close
+  void add(T task) {
+    lock.lock();
+    try {
+      interactive.add(task);
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  T take() throws InterruptedException {
+    lock.lock();
+    try {
+      while (isEmpty()) notEmpty.await();
+      return next();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  T poll(long timeout, TimeUnit unit) throws InterruptedException {
+    long nanos = unit.toNanos(timeout);
+    lock.lock();
+    try {
+      while (isEmpty()) {
+        if (nanos <= 0) return null;
+        nanos = notEmpty.awaitNanos(nanos);
+      }
+      return next();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  T poll() {
+    lock.lock();
+    try {
+      return isEmpty() ? null : next();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  int size() {
+    lock.lock();
+    try {
+      return interactive.size() + bulk.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  boolean isEmpty() {
+    lock.lock();
+    try {
+      return interactive.isEmpty() && bulk.isEmpty();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes the interactive tasks that match MERGE, looking at most window tasks ahead
+   * and stopping at the first task that matches STOP
+   *
+   * @return the removed tasks in queue order
+   */
+  List<T> removeMerged(Function<T, Match> match, int window) {
+    List<T> merged = new ArrayList<>();
+    lock.lock();
+    try {
+      Iterator<T> it = interactive.iterator();
+      for (int i = 0; i < window && it.hasNext(); i++) {
+        T task = it.next();
+        Match m = match.apply(task);
+        if (m == Match.STOP) break;
+        if (m == Match.MERGE) {
+          it.remove();
+          merged.add(task);
+        }
+      }
+      if (!merged.isEmpty()) notFull.signalAll();
+      return merged;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // must hold the lock
+  private T next() {
+    T task;
+    if (!interactive.isEmpty() && (bulk.isEmpty() || interactiveInRow < interactiveWeight)) {
+      task = interactive.poll();
+      interactiveInRow++;
+    } else {
+      task = bulk.poll();
+      interactiveInRow = 0;
+    }
+    notFull.signalAll();
+    return task;
+  }
+}
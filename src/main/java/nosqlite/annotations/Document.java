@@ -1,5 +1,8 @@
 package nosqlite.annotations;
 
+import nosqlite.utilities.IdGenerator;
+import nosqlite.utilities.NanoIdGenerator;
+
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
@@ -12,4 +15,13 @@ import java.lang.annotation.Target;
 @Target(ElementType.TYPE)
 public @interface Document {
   String collection() default "default_coll";
+  // generator for new documents, unless the @Id field sets one
+  Class<? extends IdGenerator> idGenerator() default NanoIdGenerator.class;
+  // existing tables keep their layout until Collection.migrate() is called
+  TableLayout layout() default TableLayout.ROWID;
+  // seconds a document lives after it was last saved, 0 never expires
+  long ttl() default 0;
+  // capped collection, the oldest documents are deleted above either limit, 0 has no limit
+  long maxDocuments() default 0;
+  long maxBytes() default 0;
 }
@@ -0,0 +1,17 @@
+package nosqlite.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * The document expires at the time in this field, in epoch milliseconds.
+ * A long or a Date, documents without a time never expire.
+ *
+ * @author Johan Wirén
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface Expires {
+}
@@ -1,5 +1,7 @@
 package nosqlite.annotations;
 
+import nosqlite.utilities.IdGenerator;
+
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
@@ -11,4 +13,6 @@ import java.lang.annotation.Target;
 @Retention(RetentionPolicy.RUNTIME)
 @Target(ElementType.FIELD)
 public @interface Id {
+  // generator for new documents, IdGenerator.class uses the one from @Document
+  Class<? extends IdGenerator> generator() default IdGenerator.class;
 }
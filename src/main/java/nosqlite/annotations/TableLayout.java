@@ -0,0 +1,15 @@
+package nosqlite.annotations;
+
+/**
+ * How the table of a collection is stored, set with @Document(layout = ...)
+ *
+ * @author Johan Wirén
+ */
+public enum TableLayout {
+  // rowid table with a unique index on the key, a lookup by id searches both
+  ROWID,
+  // table clustered on the key, a lookup by id searches one B-tree, text and geo indexes aren't supported
+  WITHOUT_ROWID,
+  // the key is the rowid, requires a numeric @Id
+  INTEGER
+}
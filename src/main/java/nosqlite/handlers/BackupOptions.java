@@ -0,0 +1,12 @@
+package nosqlite.handlers;
+
+/**
+ * @author Johan Wirén
+ */
+public class BackupOptions {
+  // pages copied per step, queued writes run between the steps
+  public int pagesPerStep = 100;
+  // limits the copy rate so backups don't starve writes, 0 copies as fast as possible
+  public int pagesPerSecond = 0;
+  public BackupProgressHandler onProgress = null;
+}
@@ -0,0 +1,32 @@
+package nosqlite.handlers;
+
+/**
+ * @author Johan Wirén
+ */
+public class BackupProgress {
+  public String path;
+  public long copiedPages;
+  // grows if writes during the backup add pages
+  public long totalPages;
+  public boolean done;
+
+  public BackupProgress() {
+  }
+
+  public BackupProgress(String path, long copiedPages, long totalPages, boolean done) {
+    this.path = path;
+    this.copiedPages = copiedPages;
+    this.totalPages = totalPages;
+    this.done = done;
+  }
+
+  @Override
+  public String toString() {
+    return "BackupProgress {" +
+        "\n  path='" + path + '\'' +
+        "\n  copiedPages=" + copiedPages +
+        "\n  totalPages=" + totalPages +
+        "\n  done=" + done +
+        "\n}";
+  }
+}
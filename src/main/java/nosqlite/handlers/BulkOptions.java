@@ -0,0 +1,12 @@
+package nosqlite.handlers;
+
+/**
+ * @author Johan Wirén
+ */
+public class BulkOptions {
+  // number of documents handled per write
+  public int chunkSize = 1000;
+  // saves progress with this id, a crashed operation with the same id continues where it stopped
+  public String resumeId = null;
+  public BulkProgressHandler onProgress = null;
+}
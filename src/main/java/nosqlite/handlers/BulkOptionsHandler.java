@@ -0,0 +1,9 @@
+package nosqlite.handlers;
+
+/**
+ * @author Johan Wirén
+ */
+@FunctionalInterface
+public interface BulkOptionsHandler {
+  void handle(BulkOptions options);
+}
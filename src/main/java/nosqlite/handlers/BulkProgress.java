@@ -0,0 +1,40 @@
+package nosqlite.handlers;
+
+/**
+ * @author Johan Wirén
+ */
+public class BulkProgress {
+  public String model;
+  public String operation;
+  // documents changed so far
+  public long processed;
+  // documents matching the filter when the operation started
+  public long total;
+  // last key handled, the next chunk starts after this key
+  public String lastKey;
+  public boolean done;
+
+  public BulkProgress() {
+  }
+
+  public BulkProgress(String model, String operation, long processed, long total, String lastKey, boolean done) {
+    this.model = model;
+    this.operation = operation;
+    this.processed = processed;
+    this.total = total;
+    this.lastKey = lastKey;
+    this.done = done;
+  }
+  
+  @Override
+  public String toString() {
+    return "BulkProgress {" +
+        "\n  model='" + model + '\'' +
+        "\n  operation='" + operation + '\'' +
+        "\n  processed=" + processed +
+        "\n  total=" + total +
+        "\n  lastKey='" + lastKey + '\'' +
+        "\n  done=" + done +
+        "\n}";
+  }
+}
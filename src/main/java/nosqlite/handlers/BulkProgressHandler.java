@@ -0,0 +1,9 @@
+package nosqlite.handlers;
+
+/**
+ * @author Johan Wirén
+ */
+@FunctionalInterface
+public interface BulkProgressHandler {
+  void handle(BulkProgress progress);
+}
@@ -10,4 +10,34 @@ public class CollectionConfig {
   public boolean useBrowser = false;
   public boolean useWatcher = false;
   public boolean runTestSuite = false;
+  // classes to register as collections, without scanning
+  public Class<?>[] documents = null;
+  // only scan these packages for @Document classes
+  public String[] packages = null;
+  // scan the whole classpath when there's no index, documents or packages
+  public boolean scanClasspath = true;
+  // keeps the database in memory and persists it to dbPath in the background
+  public boolean inMemory = false;
+  // milliseconds between persists, writes in this window are lost on a crash
+  public long persistInterval = 1000;
+  // "throughput", "low-latency", "low-memory" or "durable", null keeps the SQLite defaults
+  public String profile = null;
+  // pragmas for the connection, override the profile when set
+  public String journalMode = null; // DELETE, TRUNCATE, PERSIST, MEMORY, WAL or OFF
+  public String synchronous = null; // OFF, NORMAL, FULL or EXTRA
+  public Long mmapSize = null; // bytes
+  public Integer cacheSize = null; // pages, or KiB when negative
+  public Integer pageSize = null; // bytes, only for new database files
+  public String tempStore = null; // DEFAULT, FILE or MEMORY
+  public Integer walAutocheckpoint = null; // pages
+  // max number of writes waiting in each lane of the writer queue
+  public int queueCapacity = 10000;
+  // when a lane is full: "block" waits, "fail" throws RejectedExecutionException, "caller-runs" writes on the calling thread
+  public String overflowPolicy = "block";
+  // interactive writes run for every bulk write (saveMany, import, bulk operations) when both are waiting
+  public int interactiveWeight = 4;
+  // queued saves of the same document are merged into the latest, last write wins
+  public boolean coalesceWrites = false;
+  // milliseconds between deleting expired documents, see Collection.expireAfter()
+  public long sweepInterval = 1000;
 }
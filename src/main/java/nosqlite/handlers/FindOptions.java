@@ -5,7 +5,21 @@ package nosqlite.handlers;
  */
 public class FindOptions {
   public String filter = null;
+  // 'age>', 'age<' or 'age=desc', optionally with 'nulls first' or 'nulls last', several keys separated by commas
   public String sort = null;
   public int limit = 0;
   public int offset = 0;
+  
+  // sorts by the field in ascending order, after the keys already added
+  public FindOptions sortBy(String field) {
+    return sortBy(field, "asc");
+  }
+  
+  // order is 'asc' or 'desc', optionally followed by 'nulls first' or 'nulls last'
+  public FindOptions sortBy(String field, String order) {
+    if (field == null || order == null) throw new NullPointerException();
+    String key = field + "=" + order;
+    sort = sort == null ? key : sort + ", " + key;
+    return this;
+  }
 }
@@ -0,0 +1,88 @@
+package nosqlite.handlers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Johan Wirén
+ */
+public class QueryPlan {
+  public String model;
+  // the query find() runs, and the parameters bound to it
+  public String sql;
+  public List<Object> params = new ArrayList<>();
+  // EXPLAIN QUERY PLAN as a tree
+  public List<Step> plan = new ArrayList<>();
+  public List<Predicate> predicates = new ArrayList<>();
+  // every document of the collection is read
+  public boolean fullScan;
+  // documents the planner is expected to read, -1 when unknown without ANALYZE
+  public long estimatedRows;
+  // documents read when the query ran, before the filter was checked
+  public long examinedRows;
+  // documents returned by the query
+  public long returnedRows;
+
+  public QueryPlan() {
+  }
+
+  public static class Step {
+    public int id;
+    public int parent;
+    public String detail;
+    public List<Step> children = new ArrayList<>();
+
+    public Step() {
+    }
+
+    public Step(int id, int parent, String detail) {
+      this.id = id;
+      this.parent = parent;
+      this.detail = detail;
+    }
+  }
+
+  public static class Predicate {
+    public String filter;
+    // the index that can answer the predicate, whether it exists or not
+    public String index;
+    // the planner looks the predicate up in the index
+    public boolean indexed;
+
+    public Predicate() {
+    }
+
+    public Predicate(String filter, String index, boolean indexed) {
+      this.filter = filter;
+      this.index = index;
+      this.indexed = indexed;
+    }
+    
+    @Override
+    public String toString() {
+      return filter + (indexed ? " -> " + index : " -> no index");
+    }
+  }
+  
+  @Override
+  public String toString() {
+    StringBuilder tree = new StringBuilder();
+    for (Step step : plan) appendStep(tree, step, "\n    ");
+    return "QueryPlan {" +
+        "\n  model='" + model + '\'' +
+        "\n  sql='" + sql + '\'' +
+        "\n  params=" + params +
+        "\n  plan=" + tree +
+        "\n  predicates=" + predicates +
+        "\n  fullScan=" + fullScan +
+        "\n  estimatedRows=" + estimatedRows +
+        "\n  examinedRows=" + examinedRows +
+        "\n  returnedRows=" + returnedRows +
+        "\n}";
+  }
+  
+  private static void appendStep(StringBuilder tree, Step step, String indent) {
+    tree.append(indent).append(step.detail);
+    for (Step child : step.children) appendStep(tree, child, indent + "  ");
+  }
+}
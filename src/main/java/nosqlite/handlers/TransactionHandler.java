@@ -0,0 +1,11 @@
+package nosqlite.handlers;
+
+import nosqlite.Database;
+
+/**
+ * @author Johan Wirén
+ */
+@FunctionalInterface
+public interface TransactionHandler {
+  void handle(Database tx);
+}
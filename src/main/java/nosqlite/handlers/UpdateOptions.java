@@ -0,0 +1,53 @@
+package nosqlite.handlers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Update document with atomic operators.
+ * All operators are compiled into a single UPDATE statement,
+ * so no document is read before it's updated.
+ *
+ * @author Johan Wirén
+ */
+public class UpdateOptions {
+  // {operator, field, value}
+  private final List<Object[]> operations = new ArrayList<>();
+  
+  // sets the field to value, creates the field if it's missing
+  public UpdateOptions set(String field, Object value) {
+    return add("$set", field, value);
+  }
+  
+  // removes the field from the document
+  public UpdateOptions unset(String field) {
+    return add("$unset", field, null);
+  }
+  
+  // increments a numeric field, a missing field counts as 0
+  public UpdateOptions inc(String field, Number amount) {
+    if (amount == null) throw new NullPointerException();
+    return add("$inc", field, amount);
+  }
+  
+  // appends value to an array field, creates the array if it's missing
+  public UpdateOptions push(String field, Object value) {
+    return add("$push", field, value);
+  }
+  
+  // removes all elements equal to value from an array field
+  public UpdateOptions pull(String field, Object value) {
+    return add("$pull", field, value);
+  }
+  
+  public List<Object[]> getOperations() {
+    return operations;
+  }
+  
+  private UpdateOptions add(String operator, String field, Object value) {
+    if (field == null) throw new NullPointerException();
+    Object[] operation = {operator, field, value};
+    operations.add(operation);
+    return this;
+  }
+}
@@ -0,0 +1,9 @@
+package nosqlite.handlers;
+
+/**
+ * @author Johan Wirén
+ */
+@FunctionalInterface
+public interface UpdateOptionsHandler {
+  void handle(UpdateOptions options);
+}
@@ -0,0 +1,79 @@
+package nosqlite.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Writes the name of every @Document class to an index at compile time,
+ * so the database can register collections without scanning the classpath.
+ * Runs automatically when nosqlite is on the compile classpath.
+ *
+ * @author Johan Wirén
+ */
+@SupportedAnnotationTypes("nosqlite.annotations.Document")
+public class DocumentIndexProcessor extends AbstractProcessor {
+  public static final String INDEX = "META-INF/nosqlite/documents.index";
+  
+  private final Set<String> documents = new TreeSet<>();
+  
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+  
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    if (roundEnv.processingOver()) {
+      if (!documents.isEmpty()) writeIndex();
+      return false;
+    }
+    
+    for (TypeElement annotation : annotations) {
+      for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+        if (element.getKind() == ElementKind.CLASS) {
+          documents.add(processingEnv.getElementUtils().getBinaryName((TypeElement) element).toString());
+        }
+      }
+    }
+    return false;
+  }
+  
+  private void writeIndex() {
+    // keep classes from earlier incremental builds
+    try {
+      FileObject existing = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", INDEX);
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(existing.openInputStream(), StandardCharsets.UTF_8))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (!line.trim().isEmpty()) documents.add(line.trim());
+        }
+      }
+    } catch (IOException | IllegalArgumentException e) {
+      // no earlier index
+    }
+    
+    try {
+      FileObject index = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", INDEX);
+      try (Writer writer = new OutputStreamWriter(index.openOutputStream(), StandardCharsets.UTF_8)) {
+        for (String document : documents) {
+          writer.write(document);
+          writer.write('\n');
+        }
+      }
+    } catch (IOException e) {
+      processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, "Could not write " + INDEX + ": " + e.getMessage());
+    }
+  }
+}
@@ -35,6 +35,21 @@ public abstract class Filter {
     return field + "=~" + value;
   }
 
+  // full-text search, requires a text index on the collection
+  public static String text(String query) {
+    return "*@@" + query;
+  }
+
+  // documents within meters of the point, requires a geo index on the collection
+  public static String near(double lat, double lon, double meters) {
+    return "*@near" + lat + "," + lon + "," + meters;
+  }
+
+  // documents inside the bounding box, requires a geo index on the collection
+  public static String within(double minLat, double minLon, double maxLat, double maxLon) {
+    return "*@within" + minLat + "," + minLon + "," + maxLat + "," + maxLon;
+  }
+
   public static String regex(String field, String regex) { return field + "~~" + regex; }
   
   public static String not(String value) { return "!(" + value + ")"; }
@@ -0,0 +1,14 @@
+package nosqlite.utilities;
+
+/**
+ * Generates the id of a new document. Set with @Id(generator = ...) on the id field
+ * or @Document(idGenerator = ...) on the class.
+ * Implementations need a public no-arg constructor and must be thread safe,
+ * one instance is shared by every collection using it.
+ *
+ * @author Johan Wirén
+ */
+@FunctionalInterface
+public interface IdGenerator {
+  String generate();
+}
@@ -0,0 +1,16 @@
+package nosqlite.utilities;
+
+import com.aventrix.jnanoid.jnanoid.NanoIdUtils;
+
+/**
+ * Random 21 character ids from a shared SecureRandom, the default generator.
+ * The ids are hard to guess, but new documents are inserted at random places in the table.
+ *
+ * @author Johan Wirén
+ */
+public class NanoIdGenerator implements IdGenerator {
+  @Override
+  public String generate() {
+    return NanoIdUtils.randomNanoId();
+  }
+}
@@ -0,0 +1,58 @@
+package nosqlite.utilities;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Time ordered 26 character ids in the ULID format, 48 bits of milliseconds
+ * followed by 80 random bits in Crockford's base32, which sorts like the time.
+ * New documents are appended at the end of the table instead of splitting pages all over it.
+ * <p>
+ * The random part comes from ThreadLocalRandom, so threads don't contend,
+ * but the ids can be guessed. Ids from the same thread are increasing,
+ * within the same millisecond the random part is incremented.
+ *
+ * @author Johan Wirén
+ */
+public class UlidGenerator implements IdGenerator {
+  private static final char[] ALPHABET = "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray();
+
+  private static final ThreadLocal<State> state = ThreadLocal.withInitial(State::new);
+
+  private static class State {
+    long time = -1;
+    long randomHigh; // 16 bits
+    long randomLow;
+  }
+
+  @Override
+  public String generate() {
+    State s = state.get();
+    long now = System.currentTimeMillis();
+    if (now > s.time) {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      s.time = now;
+      s.randomHigh = random.nextInt(1 << 16);
+      s.randomLow = random.nextLong();
+    } else {
+      // same millisecond, or the clock went back
+      if (++s.randomLow == 0) s.randomHigh = (s.randomHigh + 1) & 0xFFFF;
+      // the random part overflowed, borrow the next millisecond
+      if (s.randomLow == 0 && s.randomHigh == 0) s.time++;
+    }
+    return encode(s.time, s.randomHigh, s.randomLow);
+  }
+
+  private static String encode(long time, long high, long low) {
+    char[] id = new char[26];
+    for (int i = 9; i >= 0; i--) {
+      id[i] = ALPHABET[(int) (time & 31)];
+      time >>>= 5;
+    }
+    for (int i = 25; i >= 10; i--) {
+      id[i] = ALPHABET[(int) (low & 31)];
+      low = (low >>> 5) | (high << 59);
+      high >>>= 5;
+    }
+    return new String(id);
+  }
+}
@@ -1,8 +1,8 @@
 package nosqlite.utilities;
 
-import com.aventrix.jnanoid.jnanoid.NanoIdUtils;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import nosqlite.annotations.Document;
 import nosqlite.annotations.Id;
 
 import java.io.InputStream;
@@ -13,12 +13,15 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author Johan Wirén
  */
 public abstract class Utils {
   private static final ObjectMapper mapper = new ObjectMapper();
+  private static final Map<Class<?>, IdGenerator> generators = new ConcurrentHashMap<>();
+  private static final Map<Class<?>, IdGenerator> documentGenerators = new ConcurrentHashMap<>();
   
   public static <T> T resultSetToObject(ResultSet rs, Class<T> klass) throws SQLException, JsonProcessingException {
     String json = resultSetToJson(rs);
@@ -97,12 +100,57 @@ public abstract class Utils {
     }
   }
 
+  /**
+   * Generator for new documents of the class, set by @Id or @Document.
+   * Maps and classes without one use NanoIdGenerator
+   */
+  public static IdGenerator idGenerator(Class<?> klass) {
+    if (klass == null || Map.class.isAssignableFrom(klass)) return generator(NanoIdGenerator.class);
+    
+    return documentGenerators.computeIfAbsent(klass, k -> {
+      Class<? extends IdGenerator> type = NanoIdGenerator.class;
+      Document document = k.getAnnotation(Document.class);
+      if (document != null) type = document.idGenerator();
+      for (Field field : k.getDeclaredFields()) {
+        Id id = field.getAnnotation(Id.class);
+        if (id != null && id.generator() != IdGenerator.class) type = id.generator();
+      }
+      return generator(type);
+    });
+  }
+  
+  private static IdGenerator generator(Class<? extends IdGenerator> type) {
+    return generators.computeIfAbsent(type, t -> {
+      try {
+        return type.getDeclaredConstructor().newInstance();
+      } catch (ReflectiveOperationException e) {
+        throw new IllegalArgumentException("IdGenerator needs a public no-arg constructor: " + type.getName(), e);
+      }
+    });
+  }
+
+  public static boolean isNumericId(Class<?> type) {
+    return type == long.class || type == Long.class || type == int.class || type == Integer.class
+        || type == short.class || type == Short.class;
+  }
+  
+  // 0 is the unset value of a primitive id
+  public static boolean isUnsetId(Object id) {
+    return id == null || id instanceof Number && ((Number) id).longValue() == 0;
+  }
+  
+  public static Object toIdType(Class<?> type, long id) {
+    if (type == int.class || type == Integer.class) return (int) id;
+    if (type == short.class || type == Short.class) return (short) id;
+    return id;
+  }
+
   public static Map<String, String> getIdField(Object model) {
     Map<String, String> idValues = new HashMap<>();
     
     if(model instanceof Map) {
       idValues.put("name", "_id");
-      idValues.put("id", NanoIdUtils.randomNanoId());
+      idValues.put("id", idGenerator(Map.class).generate());
       return idValues;
     }
 
@@ -110,12 +158,15 @@ public abstract class Utils {
       for (Field field : model.getClass().getDeclaredFields()) {
         if (field.isAnnotationPresent(Id.class)) {
           field.setAccessible(true);
-          if (field.get(model) == null) {
-            // generate random id
-            field.set(model, NanoIdUtils.randomNanoId());
+          if (isUnsetId(field.get(model))) {
+            if (isNumericId(field.getType())) {
+              throw new IllegalArgumentException("Numeric ids are generated by Collection.save(), set @Id " + field.getName());
+            }
+            // generate a new id
+            field.set(model, idGenerator(model.getClass()).generate());
           }
           idValues.put("name", field.getName());
-          idValues.put("id", (String) field.get(model));
+          idValues.put("id", String.valueOf(field.get(model)));
           break;
         }
       }
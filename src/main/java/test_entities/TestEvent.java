@@ -0,0 +1,43 @@
+package test_entities;
+
+import nosqlite.annotations.Document;
+import nosqlite.annotations.Id;
+import nosqlite.utilities.UlidGenerator;
+
+@Document
+public class TestEvent {
+
+  @Id(generator = UlidGenerator.class)
+  private String id;
+  private String name;
+
+  public TestEvent() {}
+
+  public TestEvent(String name) {
+    this.name = name;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public void setId(String id) {
+    this.id = id;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public void setName(String name) {
+    this.name = name;
+  }
+
+  @Override
+  public String toString() {
+    return "\nEvent{" +
+            "id=" + id +
+            ", name='" + name + '\'' +
+            '}';
+  }
+}
@@ -0,0 +1,64 @@
+package test_entities;
+
+import nosqlite.annotations.Document;
+import nosqlite.annotations.Id;
+
+@Document
+public class TestMetric {
+
+  @Id
+  private String id;
+  private String name;
+  private long time;
+  private double value;
+
+  public TestMetric() {}
+
+  public TestMetric(String name, long time, double value) {
+    this.name = name;
+    this.time = time;
+    this.value = value;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public void setId(String id) {
+    this.id = id;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public void setName(String name) {
+    this.name = name;
+  }
+
+  public long getTime() {
+    return time;
+  }
+
+  public void setTime(long time) {
+    this.time = time;
+  }
+
+  public double getValue() {
+    return value;
+  }
+
+  public void setValue(double value) {
+    this.value = value;
+  }
+
+  @Override
+  public String toString() {
+    return "\nMetric{" +
+            "id=" + id +
+            ", name='" + name + '\'' +
+            ", time=" + time +
+            ", value=" + value +
+            '}';
+  }
+}
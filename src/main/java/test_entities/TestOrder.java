@@ -0,0 +1,54 @@
+package test_entities;
+
+import nosqlite.annotations.Document;
+import nosqlite.annotations.Id;
+import nosqlite.annotations.TableLayout;
+
+@Document(layout = TableLayout.INTEGER)
+public class TestOrder {
+
+  @Id
+  private Long id;
+  private String product;
+  private int quantity;
+
+  public TestOrder() {}
+
+  public TestOrder(String product, int quantity) {
+    this.product = product;
+    this.quantity = quantity;
+  }
+
+  public Long getId() {
+    return id;
+  }
+
+  public void setId(Long id) {
+    this.id = id;
+  }
+
+  public String getProduct() {
+    return product;
+  }
+
+  public void setProduct(String product) {
+    this.product = product;
+  }
+
+  public int getQuantity() {
+    return quantity;
+  }
+
+  public void setQuantity(int quantity) {
+    this.quantity = quantity;
+  }
+
+  @Override
+  public String toString() {
+    return "\nOrder{" +
+            "id=" + id +
+            ", product='" + product + '\'' +
+            ", quantity=" + quantity +
+            '}';
+  }
+}
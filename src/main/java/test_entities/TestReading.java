@@ -0,0 +1,53 @@
+package test_entities;
+
+import nosqlite.annotations.Document;
+import nosqlite.annotations.Id;
+
+@Document
+public class TestReading {
+
+  @Id
+  private Long id;
+  private long time;
+  private double value;
+
+  public TestReading() {}
+
+  public TestReading(long time, double value) {
+    this.time = time;
+    this.value = value;
+  }
+
+  public Long getId() {
+    return id;
+  }
+
+  public void setId(Long id) {
+    this.id = id;
+  }
+
+  public long getTime() {
+    return time;
+  }
+
+  public void setTime(long time) {
+    this.time = time;
+  }
+
+  public double getValue() {
+    return value;
+  }
+
+  public void setValue(double value) {
+    this.value = value;
+  }
+
+  @Override
+  public String toString() {
+    return "\nReading{" +
+            "id=" + id +
+            ", time=" + time +
+            ", value=" + value +
+            '}';
+  }
+}
@@ -0,0 +1,55 @@
+package test_entities;
+
+import nosqlite.annotations.Document;
+import nosqlite.annotations.Expires;
+import nosqlite.annotations.Id;
+
+@Document
+public class TestSession {
+
+  @Id
+  private String id;
+  private String user;
+  @Expires
+  private Long expiresAt;
+
+  public TestSession() {}
+
+  public TestSession(String user, Long expiresAt) {
+    this.user = user;
+    this.expiresAt = expiresAt;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public void setId(String id) {
+    this.id = id;
+  }
+
+  public String getUser() {
+    return user;
+  }
+
+  public void setUser(String user) {
+    this.user = user;
+  }
+
+  public Long getExpiresAt() {
+    return expiresAt;
+  }
+
+  public void setExpiresAt(Long expiresAt) {
+    this.expiresAt = expiresAt;
+  }
+
+  @Override
+  public String toString() {
+    return "\nSession{" +
+            "id=" + id +
+            ", user='" + user + '\'' +
+            ", expiresAt=" + expiresAt +
+            '}';
+  }
+}
@@ -1,15 +1,58 @@
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import nosqlite.Collection;
+import nosqlite.Database;
+import nosqlite.ShardedCollection;
+import nosqlite.TimeSeriesCollection;
+import nosqlite.annotations.TableLayout;
+import nosqlite.handlers.BulkProgress;
+import nosqlite.handlers.CollectionConfigHandler;
+import nosqlite.handlers.QueryPlan;
+import nosqlite.handlers.WatchData;
+import nosqlite.utilities.NanoIdGenerator;
+import nosqlite.utilities.UlidGenerator;
+import nosqlite.utilities.Utils;
 import test_entities.TestCat;
+import test_entities.TestEvent;
+import test_entities.TestMetric;
+import test_entities.TestOrder;
 import test_entities.TestRace;
+import test_entities.TestReading;
+import test_entities.TestSession;
 import test_entities.TestUser;
 import org.junit.jupiter.api.*;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import static nosqlite.Database.collection;
 import static nosqlite.Database.collectionNames;
@@ -359,6 +402,1043 @@ public class CollectionTest {
     assertEquals(afterUpdate.getTestCats().get(0).getTestRace().getTime(), 2);
   }
   
+  @Test
+  public void testUpdateOperators() {
+    TestUser testUser = new TestUser("User-A", "abc-A", 1);
+    testUser.setUid("abc123");
+    collection(TestUser.class).save(testUser);
+    
+    collection(TestUser.class).updateById("abc123", op -> op
+        .inc("age", 5)
+        .set("username", "User-B")
+        .push("testCats", new TestCat("Cat-A", "gray", 1, new TestRace("Norwegian Forest", 1))));
+    TestUser afterUpdate = collection(TestUser.class).findById("abc123");
+    assertEquals(afterUpdate.getAge(), 6);
+    assertEquals(afterUpdate.getUsername(), "User-B");
+    assertEquals(afterUpdate.getTestCats().size(), 1);
+    assertEquals(afterUpdate.getTestCats().get(0).getTestRace().getType(), "Norwegian Forest");
+    
+    collection(TestUser.class).update("username==User-B", op -> op.inc("age", -2).unset("password"));
+    afterUpdate = collection(TestUser.class).findById("abc123");
+    assertEquals(afterUpdate.getAge(), 4);
+    assertNull(afterUpdate.getPassword());
+    
+    collection("map").put("tags", "{\"tags\":[\"a\",\"b\",\"a\"]}");
+    collection("map").update(op -> op.pull("tags", "a"));
+    collection("map").update(op -> op.push("tags", "c"));
+    assertEquals(collection("map").get("tags"), "{\"tags\":[\"b\",\"c\"]}");
+    
+    // elements keep their JSON type, and fields that aren't arrays are left as they are
+    collection("map").put("flags", "{\"flags\":[true,false,true],\"s\":\"solo\",\"n\":1.5}");
+    collection("map").put("objects", "{\"flags\":[{\"a\":1},{\"a\":2},null,3],\"s\":[\"solo\",\"duo\"]}");
+    collection("map").update(op -> op.pull("flags", true).pull("s", "solo").pull("n", 1.5));
+    assertEquals(collection("map").get("flags"), "{\"flags\":[false],\"s\":\"solo\",\"n\":1.5}");
+    assertEquals(collection("map").get("objects"), "{\"flags\":[{\"a\":1},{\"a\":2},null,3],\"s\":[\"duo\"]}");
+    Map<String, Object> pulled = new HashMap<>();
+    pulled.put("a", 2);
+    collection("map").update(op -> op.pull("flags", pulled));
+    collection("map").update(op -> op.pull("flags", null));
+    assertEquals(collection("map").get("objects"), "{\"flags\":[{\"a\":1},3],\"s\":[\"duo\"]}");
+    assertEquals(collection("map").get("tags"), "{\"tags\":[\"b\",\"c\"]}");
+  }
+  
+  @Test
+  public void testBulkOperation() throws Exception {
+    testSaveList();
+    List<BulkProgress> progress = new ArrayList<>();
+    
+    BulkProgress removed = collection(TestUser.class).bulk(op -> {
+      op.chunkSize = 30;
+      op.onProgress = progress::add;
+    }).removeField("password").get();
+    assertTrue(removed.done);
+    assertEquals(removed.processed, 100);
+    assertEquals(progress.size(), 5); // 4 chunks and done
+    assertNull(((TestUser) collection(TestUser.class).findOne("username==User-1")).getPassword());
+    
+    BulkProgress updated = collection(TestUser.class).bulk(op -> op.resumeId = "inc-age")
+        .update("age<10", op -> op.inc("age", 100)).get();
+    assertEquals(updated.processed, 10);
+    assertEquals(collection(TestUser.class).find("age>=100").size(), 10);
+    
+    BulkProgress deleted = collection(TestUser.class).bulk(op -> op.chunkSize = 7).delete("age>50").get();
+    assertEquals(deleted.processed, 59);
+    assertEquals(collection(TestUser.class).count(), 41);
+    
+    // a failed chunk fails the future, the same resumeId continues after the committed chunks
+    try (Statement stmt = collection(TestUser.class).conn().createStatement()) {
+      stmt.executeUpdate("CREATE TRIGGER fail_bulk BEFORE UPDATE ON TestUser " +
+          "WHEN json_extract(old.value, '$.username') = 'User-20' BEGIN SELECT RAISE(ABORT, 'bulk failed'); END");
+    }
+    List<BulkProgress> resumed = new ArrayList<>();
+    ExecutionException failed = assertThrows(ExecutionException.class, () -> collection(TestUser.class).bulk(op -> {
+      op.chunkSize = 5;
+      op.resumeId = "rename";
+    }).changeFieldName("name", "username").get());
+    assertTrue(failed.getCause() instanceof SQLException);
+    long renamed;
+    try (Statement stmt = collection(TestUser.class).conn().createStatement()) {
+      renamed = stmt.executeQuery("SELECT count(*) FROM TestUser WHERE json_type(value, '$.name') IS NOT NULL").getLong(1);
+      stmt.executeUpdate("DROP TRIGGER fail_bulk");
+    }
+    assertTrue(renamed % 5 == 0 && renamed < 41);
+    BulkProgress completed = collection(TestUser.class).bulk(op -> {
+      op.chunkSize = 5;
+      op.resumeId = "rename";
+      op.onProgress = resumed::add;
+    }).changeFieldName("name", "username").get();
+    assertTrue(completed.done);
+    assertEquals(completed.processed, 41);
+    try (Statement stmt = collection(TestUser.class).conn().createStatement()) {
+      assertEquals(stmt.executeQuery("SELECT count(*) FROM TestUser WHERE json_type(value, '$.username') IS NULL").getInt(1), 41);
+    }
+    assertEquals(resumed.size(), (41 - renamed + 4) / 5 + 1);
+    
+    // without runAsync the chunks run on the caller, not beside it on the same connection
+    Database sync = new Database(config -> {
+      config.dbPath = ":memory:";
+      config.runAsync = false;
+    });
+    Collection syncUsers = sync.getCollection(TestUser.class);
+    for (int i = 0; i < 20; i++) syncUsers.save(new TestUser("User-" + i, i));
+    Set<Thread> threads = new HashSet<>();
+    CompletableFuture<BulkProgress> syncDeleted = syncUsers.bulk(op -> {
+      op.chunkSize = 3;
+      op.onProgress = chunk -> threads.add(Thread.currentThread());
+    }).delete("age>=10");
+    assertTrue(syncDeleted.isDone());
+    assertEquals(syncDeleted.get().processed, 10);
+    assertEquals(threads, Collections.singleton(Thread.currentThread()));
+    assertEquals(syncUsers.count(), 10);
+    sync.close();
+  }
+  
+  @Test
+  public void testMultipleDatabases() {
+    Database first = new Database(config -> {
+      config.dbPath = ":memory:";
+      config.runTestSuite = true;
+    });
+    Database second = new Database(config -> {
+      config.dbPath = ":memory:";
+      config.runTestSuite = true;
+    });
+    
+    TestUser testUser = new TestUser("User-A", "abc-A", 1);
+    first.getCollection(TestUser.class).save(testUser);
+    
+    assertEquals(first.getCollection(TestUser.class).count(), 1);
+    assertEquals(second.getCollection(TestUser.class).count(), 0);
+    assertEquals(collection(TestUser.class).count(), 0);
+    assertEquals(first.getCollectionNames().size(), 1);
+    
+    first.close();
+    second.close();
+  }
+  
+  @Test
+  public void testShardedCollection() throws Exception {
+    ShardedCollection users = new ShardedCollection(TestUser.class, 3, config -> {
+      config.dbPath = ":memory:";
+      config.runTestSuite = true;
+    });
+    
+    List<TestUser> testUsers = new ArrayList<>();
+    for(int i = 0; i < 100; i++) {
+      testUsers.add(new TestUser("User-" + i, "abc-" + i, i));
+    }
+    users.save(testUsers);
+    
+    assertEquals(users.count(), 100);
+    assertEquals(users.find("age>=50").size(), 50);
+    
+    List<TestUser> page = users.find(null, "age=desc", 10, 5);
+    assertEquals(page.size(), 10);
+    assertEquals(page.get(0).getAge(), 94);
+    assertEquals(page.get(9).getAge(), 85);
+    
+    TestUser byId = users.findById(testUsers.get(42).getUid());
+    assertEquals(byId.getUsername(), "User-42");
+    
+    // the changed documents of every shard, like a collection returns them
+    ObjectMapper mapper = new ObjectMapper();
+    TestUser updated = mapper.readValue(users.update("age==95", op -> op.set("password", "reset")), TestUser.class);
+    assertEquals(updated.getPassword(), "reset");
+    assertEquals(users.find("password==reset").size(), 1);
+    assertNull(users.update("age>1000", op -> op.set("password", "reset")));
+    assertEquals(mapper.readTree(users.delete("age<10")).size(), 10);
+    assertEquals(users.count(), 90);
+    
+    // the id is set on the map before it's routed, and found on the same shard
+    Map<String, Object> map = new HashMap<>();
+    map.put("username", "Mappy");
+    users.save(map);
+    assertNotNull(map.get("uid"));
+    assertEquals(((TestUser) users.findById((String) map.get("uid"))).getUsername(), "Mappy");
+    users.delete(map);
+    assertEquals(users.count(), 90);
+    users.close();
+    
+    // numeric ids come from one sequence over all shards
+    ShardedCollection orders = new ShardedCollection(TestOrder.class, 3, config -> {
+      config.dbPath = ":memory:";
+      config.runTestSuite = true;
+    });
+    List<TestOrder> saved = new ArrayList<>();
+    for (int i = 0; i < 10; i++) saved.add(new TestOrder("item-" + i, i));
+    orders.save(saved);
+    orders.save(new TestOrder("single", 1));
+    assertEquals(saved.stream().map(TestOrder::getId).distinct().count(), 10L);
+    assertEquals(((TestOrder) orders.findById("11")).getProduct(), "single");
+    assertEquals(((TestOrder) orders.findById("7")).getProduct(), "item-6");
+    assertEquals(orders.count(), 11);
+    orders.close();
+  }
+  
+  @Test
+  public void testRegisterDocuments() throws Exception {
+    Database database = new Database(config -> {
+      config.dbPath = ":memory:";
+      config.documents = new Class[] { TestUser.class, TestCat.class };
+      config.scanClasspath = false;
+    });
+    
+    // tables are created on first use
+    Collection users = database.getCollection(TestUser.class);
+    ResultSet tables = users.conn().createStatement().executeQuery("SELECT group_concat(name) FROM sqlite_master WHERE type='table'");
+    assertEquals(tables.getString(1), "TestUser");
+    
+    database.getCollection("TestCat").save(new TestCat("Tyson", "Gray"));
+    assertEquals(database.getCollection(TestCat.class).find().size(), 1);
+    
+    database.close();
+  }
+  
+  @Test
+  public void testTextIndex() {
+    collection(TestUser.class).save(new TestUser[] {
+        new TestUser("Jim Beam", 30),
+        new TestUser("Jim Jones", 40),
+        new TestUser("Joe Black", 50)
+    });
+    collection(TestUser.class).createTextIndex("username");
+    
+    assertEquals(collection(TestUser.class).find(text("jim")).size(), 2);
+    assertEquals(collection(TestUser.class).find(text("jim AND jones")).size(), 1);
+    assertEquals(collection(TestUser.class).find("username@@black").size(), 1);
+    
+    // triggers keep the index in sync
+    collection(TestUser.class).updateField("username", "Jim Black");
+    assertEquals(collection(TestUser.class).find(text("black")).size(), 3);
+    collection(TestUser.class).delete("age>35");
+    assertEquals(collection(TestUser.class).find(text("jim")).size(), 1);
+    collection(TestUser.class).save(new TestUser("Joe Jones", 60));
+    assertEquals(collection(TestUser.class).find(text("jones")).size(), 1);
+    
+    collection(TestUser.class).dropTextIndex();
+    assertEquals(collection(TestUser.class).find(text("jim")).size(), 0);
+  }
+  
+  @Test
+  public void testRegexIndex() throws Exception {
+    collection(TestUser.class).save(new TestUser[] {
+        new TestUser("jimmy", 31),
+        new TestUser("joey", 32),
+        new TestUser("john", 43),
+        new TestUser("kim", 34)
+    });
+    collection(TestUser.class).createIndex("username");
+    
+    assertEquals(collection(TestUser.class).find(regex("username", "^(jim|joe).*")).size(), 2);
+    assertEquals(collection(TestUser.class).find("username~~^jo").size(), 2);
+    assertEquals(collection(TestUser.class).find("!username~~^jo").size(), 2);
+    assertEquals(collection(TestUser.class).find("username~~^j|m$").size(), 4);
+    // numbers are matched by their text
+    assertEquals(collection(TestUser.class).find("age~~^3").size(), 3);
+    
+    // the prefix 'jo' becomes a range on the index
+    QueryPlan plan = collection(TestUser.class).explain("username~~^jo");
+    assertFalse(plan.fullScan, plan.toString());
+    assertTrue(plan.predicates.get(0).indexed, plan.toString());
+    assertTrue(plan.toString().contains("USING INDEX _nosqlite_idx_TestUser_username (<expr>>? AND <expr><?)"), plan.toString());
+    assertEquals(plan.returnedRows, 2);
+    assertTrue(collection(TestUser.class).explain("username~~j|m$").fullScan);
+    
+    collection(TestUser.class).dropIndex("username");
+  }
+  
+  @Test
+  public void testGeoIndex() throws Exception {
+    Database database = new Database(":memory:");
+    Collection stores = database.getCollection("Store");
+    ObjectMapper mapper = new ObjectMapper();
+    
+    stores.put("stockholm", "{\"name\":\"Stockholm\",\"location\":{\"lat\":59.3293,\"lon\":18.0686}}");
+    stores.put("solna", "{\"name\":\"Solna\",\"location\":{\"lat\":59.3600,\"lon\":18.0009}}");
+    stores.put("gothenburg", "{\"name\":\"Gothenburg\",\"location\":{\"lat\":57.7089,\"lon\":11.9746}}");
+    stores.put("online", "{\"name\":\"Online\"}");
+    stores.createGeoIndex("location.lat", "location.lon");
+    
+    assertEquals(mapper.readTree(stores.findAsJson(near(59.3293, 18.0686, 1000))).size(), 1);
+    assertEquals(mapper.readTree(stores.findAsJson(near(59.3293, 18.0686, 10000))).size(), 2);
+    assertEquals(mapper.readTree(stores.findAsJson(near(59.3293, 18.0686, 500000))).size(), 3);
+    assertEquals(mapper.readTree(stores.findAsJson(within(59, 17, 60, 19))).size(), 2);
+    assertEquals(mapper.readTree(stores.findAsJson("name==Solna && *@near59.3293,18.0686,10000")).size(), 1);
+    
+    // triggers keep the index in sync
+    stores.put("gothenburg", "{\"name\":\"Gothenburg\",\"location\":{\"lat\":59.33,\"lon\":18.07}}");
+    assertEquals(mapper.readTree(stores.findAsJson(near(59.3293, 18.0686, 1000))).size(), 2);
+    stores.deleteById("stockholm");
+    assertEquals(mapper.readTree(stores.findAsJson(near(59.3293, 18.0686, 1000))).size(), 1);
+    
+    database.close();
+  }
+  
+  @Test
+  public void testMultikeyIndex() throws Exception {
+    Database database = new Database(":memory:");
+    Collection posts = database.getCollection("Post");
+    ObjectMapper mapper = new ObjectMapper();
+    
+    posts.put("a", "{\"tags\":[\"java\",\"sqlite\"],\"votes\":[1,2]}");
+    posts.put("b", "{\"tags\":[\"java\",\"json\"],\"votes\":[2,3]}");
+    posts.put("c", "{\"tags\":\"sqlite\",\"votes\":[]}");
+    posts.createMultikeyIndex("tags");
+    posts.createMultikeyIndex("votes");
+    
+    assertEquals(mapper.readTree(posts.findAsJson("tags==java")).size(), 2);
+    assertEquals(mapper.readTree(posts.findAsJson("tags==sqlite")).size(), 2);
+    assertEquals(mapper.readTree(posts.findAsJson("tags==[json,sqlite]")).size(), 3);
+    assertEquals(mapper.readTree(posts.findAsJson("!tags==java")).size(), 1);
+    assertEquals(mapper.readTree(posts.findAsJson("votes==2 && tags==sqlite")).size(), 1);
+    
+    // triggers keep the index in sync
+    posts.put("c", "{\"tags\":[\"java\"]}");
+    assertEquals(mapper.readTree(posts.findAsJson("tags==java")).size(), 3);
+    assertEquals(mapper.readTree(posts.findAsJson("tags==sqlite")).size(), 1);
+    
+    // the filter has a nested WHERE, the updated documents are still selected and watched
+    CompletableFuture<String> updated = new CompletableFuture<>();
+    posts.watch("update", watchData -> updated.complete(watchData.event));
+    assertNotNull(posts.updateField("tags==java", "n", 2));
+    assertEquals(updated.get(2, TimeUnit.SECONDS), "update");
+    posts.delete("tags==java");
+    assertEquals(posts.count(), 0);
+    
+    // the generated query looks the element up in the side table
+    QueryPlan plan = posts.explain("tags==java");
+    assertFalse(plan.fullScan, plan.toString());
+    assertTrue(plan.predicates.get(0).indexed, plan.toString());
+    
+    // the index only makes the lookup faster, the result is the same without it
+    posts.put("d", "{\"tags\":[\"java\"]}");
+    posts.put("e", "{\"tags\":\"java\"}");
+    assertEquals(mapper.readTree(posts.findAsJson("tags==java")).size(), 2);
+    posts.dropMultikeyIndex("tags");
+    assertEquals(mapper.readTree(posts.findAsJson("tags==java")).size(), 2);
+    assertEquals(mapper.readTree(posts.findAsJson("tags==[java,json]")).size(), 2);
+    assertEquals(mapper.readTree(posts.findAsJson("!tags==java")).size(), 0);
+    assertTrue(posts.explain("tags==java").fullScan);
+    
+    database.close();
+  }
+  
+  @Test
+  public void testTransaction() throws Exception {
+    Database database = new Database(":memory:");
+    Collection users = database.getCollection(TestUser.class);
+    CountDownLatch inserted = new CountDownLatch(1);
+    AtomicInteger events = new AtomicInteger();
+    users.watch("insert", watchData -> {
+      events.incrementAndGet();
+      inserted.countDown();
+    });
+    
+    boolean committed = database.runTransaction(tx -> {
+      tx.getCollection(TestUser.class).save(new TestUser("Loke", 10));
+      tx.getCollection(TestUser.class).save(new TestUser("Tyr", 20));
+      tx.getCollection(TestUser.class).updateField("age", 30);
+      // sees its own writes, watchers wait for commit
+      assertEquals(tx.getCollection(TestUser.class).count(), 2);
+      assertEquals(events.get(), 0);
+    });
+    assertTrue(committed);
+    assertEquals(users.find("age==30").size(), 2);
+    assertTrue(inserted.await(2, TimeUnit.SECONDS));
+    
+    // nothing is written when the transaction fails
+    boolean rolledBack = !database.runTransaction(tx -> {
+      tx.getCollection(TestUser.class).save(new TestUser("Oden", 40));
+      tx.getCollection(TestUser.class).delete();
+      throw new IllegalStateException("out of stock");
+    });
+    assertTrue(rolledBack);
+    assertEquals(users.count(), 2);
+    assertEquals(users.find("username==Oden").size(), 0);
+    
+    // errors are thrown to the caller after the rollback
+    assertThrows(AssertionError.class, () -> database.runTransaction(tx -> {
+      tx.getCollection(TestUser.class).save(new TestUser("Balder", 60));
+      throw new AssertionError("unexpected");
+    }));
+    assertEquals(users.count(), 2);
+    
+    // a table first used in a rolled back transaction is created again, with its expiry
+    assertFalse(database.runTransaction(tx -> {
+      tx.getCollection(TestSession.class).save(new TestSession("Loke", null));
+      throw new IllegalStateException("rolled back");
+    }));
+    Collection sessions = database.getCollection(TestSession.class);
+    sessions.save(new TestSession("Theo", null));
+    sessions.save(new TestSession("Kalle", System.currentTimeMillis() - 1000));
+    assertEquals(sessions.count(), 1);
+    assertEquals(((TestSession) sessions.find().get(0)).getUser(), "Theo");
+    
+    // writes after the transaction are queued as usual
+    users.save(new TestUser("Frej", 50));
+    assertEquals(users.count(), 3);
+    
+    database.close();
+  }
+  
+  @Test
+  public void testWriteQueue() throws Exception {
+    Database database = new Database(config -> {
+      config.dbPath = ":memory:";
+      config.queueCapacity = 1;
+      config.overflowPolicy = "fail";
+    });
+    Collection users = database.getCollection(TestUser.class);
+    CountDownLatch writing = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    
+    // keep the writer busy
+    CompletableFuture<Boolean> busy = CompletableFuture.supplyAsync(() -> database.runTransaction(tx -> {
+      writing.countDown();
+      try {
+        release.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    }));
+    assertTrue(writing.await(2, TimeUnit.SECONDS));
+    CompletableFuture<Object> queued = CompletableFuture.supplyAsync(() -> users.save(new TestUser("Loke", 10)));
+    Thread.sleep(200);
+    
+    // the interactive lane is full, the bulk lane isn't
+    assertThrows(RejectedExecutionException.class, () -> users.save(new TestUser("Tyr", 20)));
+    CompletableFuture<Object> bulk = CompletableFuture.supplyAsync(() -> users.save(Arrays.asList(new TestUser("Oden", 30))));
+    
+    release.countDown();
+    assertTrue(busy.get(2, TimeUnit.SECONDS));
+    queued.get(2, TimeUnit.SECONDS);
+    bulk.get(2, TimeUnit.SECONDS);
+    assertEquals(users.count(), 2);
+    
+    database.close();
+  }
+  
+  @Test
+  public void testCoalesceWrites() throws Exception {
+    Database database = new Database(config -> {
+      config.dbPath = ":memory:";
+      config.coalesceWrites = true;
+    });
+    Collection users = database.getCollection(TestUser.class);
+    CountDownLatch writing = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    
+    // queue the saves while the writer is busy
+    CompletableFuture<Boolean> busy = CompletableFuture.supplyAsync(() -> database.runTransaction(tx -> {
+      writing.countDown();
+      try {
+        release.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    }));
+    assertTrue(writing.await(2, TimeUnit.SECONDS));
+    
+    List<CompletableFuture<Object>> saves = new ArrayList<>();
+    for (int i = 1; i <= 10; i++) {
+      TestUser user = new TestUser("Loke", i);
+      user.setUid("loke");
+      saves.add(CompletableFuture.supplyAsync(() -> users.save(user)));
+      Thread.sleep(20);
+    }
+    
+    release.countDown();
+    assertTrue(busy.get(2, TimeUnit.SECONDS));
+    for (CompletableFuture<Object> save : saves) save.get(2, TimeUnit.SECONDS);
+    
+    // the last save wins, and only it was written
+    assertEquals(((TestUser) users.findById("loke")).getAge(), 10);
+    try (Statement stmt = users.conn().createStatement()) {
+      assertEquals(stmt.executeQuery("SELECT total_changes()").getInt(1), 1);
+    }
+    
+    database.close();
+  }
+  
+  @Test
+  public void testCapped() throws Exception {
+    Database database = new Database(":memory:");
+    Collection log = database.getCollection("log");
+    log.cap(5, 0);
+    for (int i = 0; i < 8; i++) log.put("entry" + i, new TestUser("User-" + i, i));
+    
+    // the oldest are deleted by the inserts
+    assertTrue(log.isCapped());
+    assertEquals(log.count(), 5);
+    assertNull(log.get("entry2"));
+    assertNotNull(log.get("entry3"));
+    
+    Collection small = database.getCollection("small");
+    small.cap(0, 300);
+    for (int i = 0; i < 20; i++) small.put("entry" + i, new TestUser("User-" + i, i));
+    try (Statement stmt = small.conn().createStatement()) {
+      assertTrue(stmt.executeQuery("SELECT sum(length(value)) FROM small").getInt(1) <= 300);
+    }
+    assertNotNull(small.get("entry19"));
+    assertThrows(IllegalArgumentException.class, () -> small.cap(0, 0));
+    
+    // the cursor reads in insertion order, then follows the inserts
+    List<Map> received = new CopyOnWriteArrayList<>();
+    CountDownLatch tailed = new CountDownLatch(6);
+    CountDownLatch reinserted = new CountDownLatch(7);
+    Subscription[] subscription = new Subscription[1];
+    log.<Map>tail().subscribe(new Subscriber<Map>() {
+      public void onSubscribe(Subscription s) { subscription[0] = s; }
+      public void onNext(Map doc) { received.add(doc); tailed.countDown(); reinserted.countDown(); }
+      public void onError(Throwable e) { fail(e); }
+      public void onComplete() { fail("tail never completes"); }
+    });
+    subscription[0].request(3);
+    assertEquals(received.size(), 3);
+    assertEquals(received.get(0).get("username"), "User-3");
+    subscription[0].request(10);
+    log.put("entry8", new TestUser("User-8", 8));
+    assertTrue(tailed.await(2, TimeUnit.SECONDS));
+    assertEquals(received.get(5).get("username"), "User-8");
+    
+    // the newest rowid is reused after it's deleted, the sequence is not
+    log.remove("entry8");
+    log.put("entry9", new TestUser("User-9", 9));
+    assertTrue(reinserted.await(2, TimeUnit.SECONDS));
+    assertEquals(received.get(6).get("username"), "User-9");
+    assertEquals(received.size(), 7);
+    subscription[0].cancel();
+    
+    database.close();
+  }
+  
+  @Test
+  public void testExpiry() throws Exception {
+    Database database = new Database(config -> {
+      config.dbPath = ":memory:";
+      config.sweepInterval = 50;
+    });
+    Collection sessions = database.getCollection(TestSession.class);
+    long now = System.currentTimeMillis();
+    TestSession expired = sessions.save(new TestSession("Loke", now - 1000));
+    sessions.save(new TestSession("Theo", now + 60000));
+    sessions.save(new TestSession("Kalle", null));
+    
+    // hidden before the sweeper deletes it
+    assertNull(sessions.findById(expired.getId()));
+    assertEquals(sessions.find("user==Loke").size(), 0);
+    assertEquals(sessions.find(null, "user<", 10, 0).size(), 2);
+    assertEquals(sessions.count(), 2);
+    
+    // deleted by the sweeper, the others are kept
+    Thread.sleep(300);
+    try (Statement stmt = sessions.conn().createStatement()) {
+      assertEquals(stmt.executeQuery("SELECT count(*) FROM TestSession").getInt(1), 2);
+    }
+    
+    // a fixed time after the last save
+    Collection cache = database.getCollection("cache");
+    cache.expireAfter(200, TimeUnit.MILLISECONDS);
+    cache.put("loke", new TestUser("Loke", 5));
+    assertNotNull(cache.get("loke"));
+    Thread.sleep(400);
+    assertNull(cache.get("loke"));
+    try (Statement stmt = cache.conn().createStatement()) {
+      assertEquals(stmt.executeQuery("SELECT count(*) FROM cache").getInt(1), 0);
+    }
+    
+    database.close();
+    
+    // without runAsync the caller sweeps after its writes, never inside its transaction
+    Database sync = new Database(config -> {
+      config.dbPath = ":memory:";
+      config.runAsync = false;
+      config.sweepInterval = 50;
+    });
+    Collection syncSessions = sync.getCollection(TestSession.class);
+    syncSessions.save(new TestSession("Loke", System.currentTimeMillis() - 1000));
+    // expired documents aren't exported either
+    ByteArrayOutputStream exported = new ByteArrayOutputStream();
+    assertEquals(syncSessions.exportJson(exported), 0L);
+    assertEquals(exported.toString("UTF-8"), "[]");
+    Thread.sleep(100);
+    int[] inTransaction = new int[1];
+    assertTrue(sync.runTransaction(tx -> {
+      syncSessions.save(new TestSession("Theo", null));
+      try (Statement stmt = syncSessions.conn().createStatement()) {
+        inTransaction[0] = stmt.executeQuery("SELECT count(*) FROM TestSession").getInt(1);
+      } catch (SQLException e) {
+        fail(e);
+      }
+    }));
+    assertEquals(inTransaction[0], 2);
+    try (Statement stmt = syncSessions.conn().createStatement()) {
+      assertEquals(stmt.executeQuery("SELECT count(*) FROM TestSession").getInt(1), 1);
+    }
+    sync.close();
+  }
+  
+  @Test
+  public void testTimeSeries() {
+    Database database = new Database(":memory:");
+    TimeSeriesCollection metrics = new TimeSeriesCollection(database, TestMetric.class, "time", 1, TimeUnit.DAYS);
+    long day = TimeUnit.DAYS.toMillis(1);
+    long today = System.currentTimeMillis() / day * day;
+    
+    List<TestMetric> saved = new ArrayList<>();
+    for (int d = 4; d >= 0; d--) {
+      for (int h = 0; h < 24; h += 6) saved.add(new TestMetric("cpu", today - d * day + TimeUnit.HOURS.toMillis(h), d * 100 + h));
+    }
+    metrics.save(saved);
+    assertEquals(metrics.partitions().size(), 5);
+    assertEquals(metrics.count(), 20);
+    
+    // only the partitions in range are queried, the bounds are still checked
+    List<TestMetric> range = metrics.find("time>=" + (today - 2 * day) + "&&time<" + (today - day + 1));
+    assertEquals(range.size(), 5);
+    assertEquals(metrics.find("name==cpu&&(value>=100&&time<" + today + ")").size(), 16);
+    assertEquals(metrics.find("time<" + today + "||value==0").size(), 17);
+    
+    // sorted by time across partitions
+    List<TestMetric> latest = metrics.find(null, "time>", 3, 1);
+    assertEquals(latest.stream().map(TestMetric::getValue).collect(Collectors.toList()), Arrays.asList(12.0, 6.0, 0.0));
+    List<TestMetric> lowest = metrics.find(null, "value<", 2, 0);
+    assertEquals(lowest.get(1).getValue(), 6.0);
+    TestMetric first = metrics.findById(saved.get(0).getId());
+    assertEquals(first.getValue(), 400.0);
+    
+    // a document whose time moved to another bucket is moved with it
+    first.setTime(today - 3 * day);
+    metrics.save(first);
+    assertEquals(metrics.count(), 20);
+    assertEquals(((TestMetric) metrics.findById(first.getId())).getTime(), today - 3 * day);
+    first.setTime(today - 4 * day);
+    metrics.save(new TestMetric[] { first });
+    assertEquals(metrics.count(), 20);
+    assertEquals(metrics.find("time<" + (today - 3 * day)).size(), 4);
+    assertNull(metrics.deleteById("missing"));
+    
+    // numeric ids aren't repeated in each partition
+    TimeSeriesCollection readings = new TimeSeriesCollection(database, TestReading.class, "time", 1, TimeUnit.DAYS);
+    readings.save(new TestReading(today - day, 1));
+    readings.save(Arrays.asList(new TestReading(today, 2), new TestReading(today - 2 * day, 3)));
+    assertEquals(readings.find(null, "id<", 0, 0).stream().map(reading -> ((TestReading) reading).getId()).collect(Collectors.toList()),
+        Arrays.asList(1L, 2L, 3L));
+    assertEquals(((TestReading) readings.findById("3")).getValue(), 3.0);
+    
+    // retention drops whole partitions
+    assertEquals(metrics.dropBefore(today - 2 * day), 2);
+    assertEquals(metrics.count(), 12);
+    metrics.retention(1, TimeUnit.DAYS);
+    assertEquals(metrics.partitions(), Arrays.asList(today - day, today));
+    assertEquals(metrics.delete("time<" + today + "&&value>=112"), 2);
+    assertEquals(metrics.count(), 6);
+    
+    // the buckets are kept in the database
+    assertThrows(IllegalArgumentException.class, () -> new TimeSeriesCollection(database, TestMetric.class, "time", 1, TimeUnit.HOURS));
+    assertEquals(new TimeSeriesCollection(database, TestMetric.class, "time", 24, TimeUnit.HOURS).count(), 6);
+    database.close();
+  }
+  
+  @Test
+  public void testMultiSort() {
+    Database database = new Database(":memory:");
+    Collection users = database.getCollection(TestUser.class);
+    users.save(Arrays.asList(
+        new TestUser("Loke", "b", 5),
+        new TestUser("Theo", 7),
+        new TestUser("Kalle", "a", 5),
+        new TestUser("Anna", "c", 7)));
+    
+    List<TestUser> sorted = users.find(op -> op.sortBy("age", "desc").sortBy("password", "asc nulls last"));
+    assertEquals(sorted.stream().map(TestUser::getUsername).collect(Collectors.toList()),
+        Arrays.asList("Anna", "Theo", "Kalle", "Loke"));
+    sorted = users.find(null, "password< nulls last, age>", 0, 0);
+    assertEquals(sorted.get(3).getUsername(), "Theo");
+    // the page is read after sorting the rows
+    sorted = users.find(null, "age<, password>", 2, 1);
+    assertEquals(sorted.stream().map(TestUser::getUsername).collect(Collectors.toList()),
+        Arrays.asList("Kalle", "Anna"));
+    assertThrows(IllegalArgumentException.class, () -> users.find(null, "age'); DROP TABLE x; --<", 0, 0));
+    
+    // the sort is read from an index on the same fields
+    try (Statement stmt = users.conn().createStatement()) {
+      stmt.executeUpdate("CREATE INDEX age_password ON TestUser(json_extract(value, '$.age'), json_extract(value, '$.password'))");
+    } catch (Exception e) {
+      fail(e);
+    }
+    QueryPlan plan = users.explain(null, "age<, password<");
+    assertFalse(plan.plan.stream().anyMatch(step -> step.detail.contains("TEMP B-TREE")), plan.toString());
+    
+    database.close();
+  }
+  
+  @Test
+  public void testExplain() {
+    Database database = new Database(":memory:");
+    Collection users = database.getCollection(TestUser.class);
+    List<TestUser> docs = new ArrayList<>();
+    for (int i = 0; i < 200; i++) docs.add(new TestUser("user" + i, i % 20));
+    users.save(docs);
+    
+    QueryPlan plan = users.explain("age==5");
+    assertTrue(plan.fullScan);
+    assertFalse(plan.predicates.get(0).indexed);
+    assertEquals(plan.examinedRows, 200);
+    assertEquals(plan.returnedRows, 10);
+    // the value is bound again for the elements of an array
+    assertEquals(plan.params, Arrays.asList(5, 5));
+    
+    users.createIndex("age");
+    plan = users.explain("age==5 && username=~user1%", "username<");
+    assertFalse(plan.fullScan);
+    assertEquals(plan.predicates.get(0).filter, "age==5");
+    assertTrue(plan.predicates.get(0).indexed);
+    assertFalse(plan.predicates.get(1).indexed);
+    // equality also matches array elements, both sides of the OR are looked up in the index
+    assertEquals(plan.plan.get(0).detail, "MULTI-INDEX OR");
+    assertTrue(plan.toString().contains("SEARCH TestUser USING INDEX _nosqlite_idx_TestUser_age (<expr>=?)"), plan.toString());
+    assertEquals(plan.examinedRows, 10);
+    assertEquals(plan.returnedRows, 5);
+    assertEquals(users.find("age==5 && username=~user1%", "username<", 0, 0).size(), 5);
+    
+    database.close();
+  }
+  
+  @Test
+  public void testPublish() throws Exception {
+    Database database = new Database(":memory:");
+    Collection users = database.getCollection(TestUser.class);
+    List<TestUser> docs = new ArrayList<>();
+    for (int i = 0; i < 600; i++) docs.add(new TestUser("user" + i, i));
+    users.save(docs);
+    
+    // the subscriber only gets what it requested, across several pages
+    List<TestUser> received = new ArrayList<>();
+    AtomicInteger completed = new AtomicInteger();
+    Subscription[] subscription = new Subscription[1];
+    users.<TestUser>publish("age>=100", "age>").subscribe(new Subscriber<TestUser>() {
+      public void onSubscribe(Subscription s) { subscription[0] = s; }
+      public void onNext(TestUser user) { received.add(user); }
+      public void onError(Throwable e) { fail(e); }
+      public void onComplete() { completed.incrementAndGet(); }
+    });
+    assertEquals(received.size(), 0);
+    subscription[0].request(300);
+    assertEquals(received.size(), 300);
+    assertEquals(received.get(0).getAge(), 599);
+    assertEquals(completed.get(), 0);
+    subscription[0].request(Long.MAX_VALUE);
+    assertEquals(received.size(), 500);
+    assertEquals(received.get(499).getAge(), 100);
+    assertEquals(completed.get(), 1);
+    
+    // changes wait in the buffer until they're requested, and stop on cancel
+    List<WatchData> changes = new ArrayList<>();
+    CountDownLatch changed = new CountDownLatch(2);
+    users.changes().subscribe(new Subscriber<WatchData>() {
+      public void onSubscribe(Subscription s) { subscription[0] = s; }
+      public void onNext(WatchData watchData) { changes.add(watchData); changed.countDown(); }
+      public void onError(Throwable e) { fail(e); }
+      public void onComplete() { fail("changes never complete"); }
+    });
+    users.save(new TestUser("Loke", 5));
+    users.save(new TestUser("Theo", 6));
+    Thread.sleep(100);
+    assertEquals(changes.size(), 0);
+    subscription[0].request(10);
+    assertTrue(changed.await(2, TimeUnit.SECONDS));
+    assertEquals(changes.get(0).event, "insert");
+    subscription[0].cancel();
+    users.save(new TestUser("Kalle", 7));
+    Thread.sleep(100);
+    assertEquals(changes.size(), 2);
+    
+    database.close();
+  }
+  
+  @Test
+  public void testImportExport() throws Exception {
+    Database database = new Database(":memory:");
+    Collection users = database.getCollection(TestUser.class);
+    
+    StringBuilder json = new StringBuilder("[");
+    for (int i = 0; i < 2500; i++) {
+      if (i > 0) json.append(',');
+      // every other document gets a generated id
+      json.append(i % 2 == 0 ? "{\"uid\":\"user-" + i + "\"," : "{").append("\"username\":\"User-").append(i).append("\",\"age\":").append(i % 90).append('}');
+    }
+    json.append(']');
+    
+    assertEquals(users.importJson(new ByteArrayInputStream(json.toString().getBytes(StandardCharsets.UTF_8))), 2500L);
+    assertEquals(users.count(), 2500);
+    TestUser imported = users.findById("user-10");
+    assertEquals(imported.getUsername(), "User-10");
+    assertEquals(users.find("uid==null").size(), 0);
+    
+    Path file = Files.createTempFile("nosqlite-export", ".json");
+    assertEquals(users.exportJson(file), 2500L);
+    
+    Database copy = new Database(":memory:");
+    Collection copies = copy.getCollection(TestUser.class);
+    assertEquals(copies.importJson(file), 2500L);
+    assertEquals(copies.findByIdAsJson("user-10"), users.findByIdAsJson("user-10"));
+    
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    copies.exportJson(out);
+    assertEquals(new ObjectMapper().readTree(out.toByteArray()).size(), 2500);
+    
+    assertEquals(users.importJson(new ByteArrayInputStream("{\"uid\":\"single\"}".getBytes(StandardCharsets.UTF_8))), -1L);
+    
+    Files.delete(file);
+    copy.close();
+    database.close();
+  }
+  
+  @Test
+  public void testBackup() throws Exception {
+    Database database = new Database(":memory:");
+    Collection users = database.getCollection(TestUser.class);
+    List<TestUser> docs = new ArrayList<>();
+    for (int i = 0; i < 3000; i++) docs.add(new TestUser("User-" + i, "secret-" + i, i));
+    users.save(docs);
+    
+    Path dir = Paths.get("db/backup-test");
+    List<Long> steps = new ArrayList<>();
+    CompletableFuture<Object> saved = new CompletableFuture<>();
+    CompletableFuture<Integer> counted = new CompletableFuture<>();
+    boolean[] countedDuring = new boolean[1];
+    
+    boolean done = database.backup(dir.resolve("backup.db"), op -> {
+      op.pagesPerStep = 10;
+      op.pagesPerSecond = 200;
+      op.onProgress = progress -> {
+        // writes and reads aren't blocked while the backup runs
+        if (steps.isEmpty()) {
+          new Thread(() -> saved.complete(users.save(new TestUser("During", 1)))).start();
+          new Thread(() -> counted.complete(users.count())).start();
+        }
+        if (!progress.done) countedDuring[0] = counted.isDone();
+        steps.add(progress.copiedPages);
+      };
+    });
+    assertTrue(done);
+    assertTrue(saved.isDone());
+    assertTrue(countedDuring[0]);
+    assertTrue(steps.size() > 2);
+    
+    Database backup = new Database(dir.resolve("backup.db").toString());
+    assertEquals(backup.getCollection(TestUser.class).count(), 3001);
+    assertEquals(backup.getCollection(TestUser.class).find("username==During").size(), 1);
+    backup.close();
+    
+    assertTrue(database.snapshot(dir.resolve("snapshot.db")));
+    Database snapshot = new Database(dir.resolve("snapshot.db").toString());
+    assertEquals(snapshot.getCollection(TestUser.class).count(), 3001);
+    snapshot.close();
+    
+    database.close();
+    Files.delete(dir.resolve("backup.db"));
+    Files.delete(dir.resolve("snapshot.db"));
+    Files.delete(dir);
+  }
+  
+  @Test
+  public void testInMemoryPersistence() throws Exception {
+    String path = "db/cache-test.db";
+    Files.deleteIfExists(Paths.get(path));
+    CollectionConfigHandler config = op -> {
+      op.dbPath = path;
+      op.inMemory = true;
+      op.persistInterval = 50;
+    };
+    
+    Database cache = new Database(config);
+    List<TestUser> docs = new ArrayList<>();
+    for (int i = 0; i < 100; i++) docs.add(new TestUser("User-" + i, i));
+    cache.getCollection(TestUser.class).save(docs);
+    
+    // persisted in the background
+    int persisted = 0;
+    for (int i = 0; i < 100 && persisted < 100; i++) {
+      Thread.sleep(20);
+      persisted = countRows(path, "TestUser");
+    }
+    assertEquals(persisted, 100);
+    
+    cache.getCollection(TestUser.class).save(new TestUser("Last", 1));
+    cache.close();
+    assertEquals(countRows(path, "TestUser"), 101);
+    
+    // loaded from the file on startup
+    Database restarted = new Database(config);
+    assertEquals(restarted.getCollection(TestUser.class).count(), 101);
+    restarted.getCollection(TestUser.class).delete("username==Last");
+    assertTrue(restarted.persist());
+    assertEquals(countRows(path, "TestUser"), 100);
+    restarted.close();
+    
+    Files.delete(Paths.get(path));
+  }
+  
+  private static int countRows(String path, String table) throws Exception {
+    if (!Files.exists(Paths.get(path))) return 0;
+    try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + path);
+         Statement stmt = conn.createStatement()) {
+      ResultSet tables = stmt.executeQuery("SELECT count(*) FROM sqlite_master WHERE name = '" + table + "'");
+      if (tables.getInt(1) == 0) return 0;
+      return stmt.executeQuery("SELECT count(*) FROM " + table).getInt(1);
+    }
+  }
+  
+  @Test
+  public void testStorageProfile() throws Exception {
+    Database database = new Database(config -> {
+      config.dbPath = "db/profile-test.db";
+      config.profile = "throughput";
+      config.synchronous = "full";
+    });
+    
+    try (Statement stmt = database.getCollection(TestUser.class).conn().createStatement()) {
+      assertEquals(stmt.executeQuery("PRAGMA journal_mode").getString(1), "wal");
+      // explicit options override the profile
+      assertEquals(stmt.executeQuery("PRAGMA synchronous").getInt(1), 2);
+      assertEquals(stmt.executeQuery("PRAGMA cache_size").getInt(1), -65536);
+      assertEquals(stmt.executeQuery("PRAGMA temp_store").getInt(1), 2);
+    }
+    database.close();
+    
+    assertThrows(IllegalArgumentException.class, () -> new Database(config -> {
+      config.dbPath = ":memory:";
+      config.journalMode = "wal; DROP TABLE TestUser";
+    }));
+    assertThrows(IllegalArgumentException.class, () -> new Database(config -> {
+      config.dbPath = ":memory:";
+      config.profile = "fast";
+    }));
+  }
+  
+  @Test
+  public void testIdGenerator() {
+    assertTrue(Utils.idGenerator(TestUser.class) instanceof NanoIdGenerator);
+    assertTrue(Utils.idGenerator(TestEvent.class) instanceof UlidGenerator);
+    
+    Collection events = collection(TestEvent.class);
+    List<String> ids = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      TestEvent event = events.save(new TestEvent("event " + i));
+      assertTrue(event.getId().matches("[0-9A-HJKMNP-TV-Z]{26}"));
+      ids.add(event.getId());
+    }
+    
+    // ids sort in the order they were generated, also within the same millisecond
+    List<String> sorted = new ArrayList<>(ids);
+    sorted.sort(null);
+    assertEquals(sorted, ids);
+    assertEquals(events.count(), 1000);
+    assertEquals(((TestEvent) events.find(null, "id>", 1, 0).get(0)).getName(), "event 999");
+    
+    events.delete();
+  }
+  
+  @Test
+  public void testNumericIds() throws Exception {
+    Database database = new Database(":memory:");
+    Collection orders = database.getCollection(TestOrder.class);
+    TestOrder first = orders.save(new TestOrder("keyboard", 1));
+    TestOrder explicit = new TestOrder("mouse", 2);
+    explicit.setId(5L);
+    orders.save(explicit);
+    
+    // generated ids continue after explicit ids instead of replacing them
+    TestOrder next = orders.save(new TestOrder("screen", 1));
+    assertEquals(first.getId(), Long.valueOf(1));
+    assertEquals(next.getId(), Long.valueOf(6));
+    assertEquals(orders.count(), 3);
+    
+    // imported documents use the same sequence
+    String json = "[{\"product\":\"cable\"},{\"id\":10,\"product\":\"lamp\"},{\"product\":\"desk\"}]";
+    assertEquals(orders.importJson(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8))), 3);
+    assertEquals(((TestOrder) orders.findById("7")).getProduct(), "cable");
+    assertEquals(((TestOrder) orders.findById("11")).getProduct(), "desk");
+    TestOrder last = orders.save(new TestOrder("chair", 4));
+    assertEquals(last.getId(), Long.valueOf(12));
+    assertEquals(orders.count(), 7);
+    ByteArrayOutputStream exported = new ByteArrayOutputStream();
+    assertEquals(orders.exportJson(exported), 7L);
+    assertEquals(new ObjectMapper().readTree(exported.toByteArray()).get(6).get("product").asText(), "chair");
+    database.close();
+  }
+  
+  @Test
+  public void testTableLayout() throws Exception {
+    Collection orders = collection(TestOrder.class);
+    assertEquals(orders.layout(), TableLayout.INTEGER);
+    TestOrder first = orders.save(new TestOrder("keyboard", 1));
+    orders.save(Arrays.asList(new TestOrder("mouse", 2), new TestOrder("screen", 1)));
+    assertEquals(first.getId(), Long.valueOf(1));
+    assertEquals(((TestOrder) orders.findById("3")).getProduct(), "screen");
+    assertEquals(((TestOrder) orders.find(null, "id>", 1, 0).get(0)).getProduct(), "screen");
+    
+    try (Statement stmt = orders.conn().createStatement()) {
+      String plan = stmt.executeQuery("EXPLAIN QUERY PLAN SELECT value FROM TestOrder WHERE key = '2'").getString(4);
+      assertTrue(plan.contains("INTEGER PRIMARY KEY"), plan);
+    }
+    orders.delete();
+    
+    Collection notes = collection("layout_notes");
+    notes.put("b", "{\"title\":\"second\",\"tags\":[\"sqlite\"]}");
+    notes.put("a", "{\"title\":\"first\",\"tags\":[\"java\"]}");
+    notes.createIndex("title");
+    notes.createMultikeyIndex("tags");
+    notes.createTextIndex("title");
+    
+    // text indexes are joined on rowid
+    assertThrows(IllegalStateException.class, () -> notes.migrate(TableLayout.WITHOUT_ROWID));
+    notes.dropTextIndex();
+    assertTrue(notes.migrate(TableLayout.WITHOUT_ROWID));
+    assertEquals(notes.layout(), TableLayout.WITHOUT_ROWID);
+    assertThrows(IllegalStateException.class, () -> notes.createTextIndex("title"));
+    assertThrows(IllegalArgumentException.class, () -> notes.migrate(TableLayout.INTEGER));
+    
+    assertEquals(new ObjectMapper().readTree(notes.findAsJson("tags==sqlite")).get(0).get("title").asText(), "second");
+    try (Statement stmt = notes.conn().createStatement()) {
+      ResultSet rs = stmt.executeQuery("SELECT sql FROM sqlite_master WHERE name = 'layout_notes'");
+      assertTrue(rs.getString(1).contains("WITHOUT ROWID"));
+      rs = stmt.executeQuery("SELECT COUNT(*) FROM sqlite_master WHERE type = 'index' AND name = '_nosqlite_idx_layout_notes_title'");
+      assertEquals(rs.getInt(1), 1);
+    }
+    
+    assertTrue(notes.migrate(TableLayout.ROWID));
+    notes.createTextIndex("title");
+    assertEquals(new ObjectMapper().readTree(notes.findAsJson(text("first"))).size(), 1);
+    
+    notes.dropTextIndex();
+    notes.dropMultikeyIndex("tags");
+    notes.dropIndex("title");
+    notes.delete();
+  }
+  
   @Test
   public void testRemoveField() {}
   